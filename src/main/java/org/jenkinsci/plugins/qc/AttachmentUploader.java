@@ -0,0 +1,168 @@
+package org.jenkinsci.plugins.qc;
+
+import hudson.FilePath;
+import org.jenkinsci.plugins.qc.client.Entity;
+import org.jenkinsci.plugins.qc.client.Throttle;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Uploads files from the workspace as attachments of the runs of a build.
+ * <p>
+ * Files are streamed straight from the agent that holds the workspace, a few
+ * at a time, under the upload limits of the server (see {@link Throttle}). A
+ * failed upload is retried on its own; before retrying it checks whether the
+ * attachment made it to the server after all, as Quality Center cannot resume
+ * a partial upload. Failures, including failures to list the files, are
+ * reported in the build log but do not fail the build.
+ */
+final class AttachmentUploader {
+
+    /**
+     * Replaced with the name of the test class in the attachment pattern.
+     */
+    static final String CLASS_TOKEN = "{class}";
+
+    private static final int THREADS = Throttle.MAX_UPLOADS;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY = 2000;
+
+    private final QualityCenterSession session;
+    private final String domain;
+    private final String project;
+    private final FilePath workspace;
+    private final String pattern;
+    private final long maxSize;
+    private final PrintStream logger;
+
+    /**
+     * @param workspace The workspace the files are in.
+     * @param pattern   An Ant style pattern of the files to attach to each run, in which
+     *                  {@value #CLASS_TOKEN} is replaced with the name of the test class.
+     * @param maxSize   The maximum size of an attachment in bytes (zero for unlimited).
+     */
+    AttachmentUploader(QualityCenterSession session, String domain, String project, FilePath workspace,
+                       String pattern, long maxSize, PrintStream logger) {
+        this.session = session;
+        this.domain = domain;
+        this.project = project;
+        this.workspace = workspace;
+        this.pattern = pattern;
+        this.maxSize = maxSize;
+        this.logger = logger;
+    }
+
+    /**
+     * Upload the attachments of the runs. Failures, including failures to list
+     * the files and interruptions, are only logged.
+     *
+     * @param runs The runs to attach files to, by the name of their test class.
+     */
+    void upload(Map<String, Entity> runs) {
+        try {
+            uploadAll(list(runs));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.println("Interrupted while uploading attachments");
+        }
+    }
+
+    private List<Callable<Boolean>> list(Map<String, Entity> runs) throws InterruptedException {
+        List<Callable<Boolean>> uploads = new ArrayList<Callable<Boolean>>();
+        for (Map.Entry<String, Entity> run : runs.entrySet()) {
+            String include = pattern.replace(CLASS_TOKEN, run.getKey());
+            try {
+                Set<String> names = new HashSet<String>();
+                for (FilePath file : workspace.list(include)) {
+                    // Attachment names must be unique per run
+                    if (!names.add(file.getName())) {
+                        logger.println("Skipping attachment with duplicate name: " + file.getRemote());
+                    } else if (maxSize > 0 && file.length() > maxSize) {
+                        logger.println("Skipping attachment larger than " + maxSize + " bytes: "
+                                + file.getRemote());
+                    } else {
+                        uploads.add(upload(run.getValue(), file));
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.println("Failed to list attachments " + include + ": " + e);
+            }
+        }
+        return uploads;
+    }
+
+    private void uploadAll(List<Callable<Boolean>> uploads) throws InterruptedException {
+        if (uploads.isEmpty()) {
+            return;
+        }
+
+        logger.println("Uploading " + uploads.size() + " attachments");
+        int failed = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(THREADS, uploads.size()));
+        try {
+            for (Future<Boolean> result : executor.invokeAll(uploads)) {
+                try {
+                    if (!result.get()) {
+                        failed++;
+                    }
+                } catch (ExecutionException e) {
+                    failed++;
+                    logger.println("Failed to upload attachment: " + e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        logger.println("Uploaded " + (uploads.size() - failed) + " attachments (" + failed + " failed)");
+    }
+
+    private Callable<Boolean> upload(final Entity run, final FilePath file) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws InterruptedException {
+                String name = file.getName();
+                for (int attempt = 1; ; attempt++) {
+                    try {
+                        if (attempt > 1 && isAttached(run, name)) {
+                            logger.println("Attachment already uploaded: " + name);
+                            return true;
+                        }
+                        InputStream in = file.read();
+                        try {
+                            run.attach(name, in);
+                        } finally {
+                            in.close();
+                        }
+                        logger.println("Uploaded attachment: " + name);
+                        return true;
+                    } catch (IOException | RuntimeException e) {
+                        if (attempt >= MAX_ATTEMPTS) {
+                            logger.println("Failed to upload attachment " + name + ": " + e);
+                            return false;
+                        }
+                        logger.println("Retrying upload of attachment " + name + ": " + e);
+                        Thread.sleep(RETRY_DELAY * attempt);
+                    }
+                }
+            }
+        };
+    }
+
+    private boolean isAttached(Entity run, String name) {
+        return !session.getClient().query(domain, project).resource("runs/" + run.get("id") + "/attachments")
+                .fields("id", "name").filter("name[\"{0}\"]", name).execute().isEmpty();
+    }
+
+}
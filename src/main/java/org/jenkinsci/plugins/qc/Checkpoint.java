@@ -0,0 +1,61 @@
+package org.jenkinsci.plugins.qc;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The progress of importing a deferred export: the test classes whose runs
+ * (with all their run steps) were already published, one name per line.
+ * <p>
+ * A failed import is retried from the checkpoint instead of from the start,
+ * so runs published before the failure are not added again.
+ */
+final class Checkpoint {
+
+    private final File file;
+    private final Set<String> published = new HashSet<String>();
+
+    Checkpoint(File file) throws IOException {
+        this.file = file;
+        if (file.isFile()) {
+            List<String> lines = FileUtils.readLines(file, "UTF-8");
+            for (String line : lines) {
+                if (line.length() > 0) {
+                    published.add(line);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of test classes already published.
+     */
+    synchronized int size() {
+        return published.size();
+    }
+
+    /**
+     * @return whether the run of the test class was already published.
+     */
+    synchronized boolean isPublished(String className) {
+        return published.contains(className);
+    }
+
+    /**
+     * Record that the run of the test class was published.
+     */
+    synchronized void published(String className) throws IOException {
+        FileUtils.writeStringToFile(file, className + "\n", "UTF-8", true);
+        published.add(className);
+    }
+
+    void delete() {
+        FileUtils.deleteQuietly(file);
+    }
+
+}
@@ -0,0 +1,235 @@
+package org.jenkinsci.plugins.qc;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.jenkinsci.plugins.qc.QualityCenterIntegrationRecorder.QualityCenterIntegrationDescriptor;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Imports the results that builds exported for deferred import (see
+ * {@link ResultPublisher#deferred(boolean)}) into Quality Center.
+ * <p>
+ * Exports are written to the build directory and queued by a small pointer file
+ * in {@code $JENKINS_HOME/qc-exports}. Every run of this task imports as many
+ * queued exports as fit into the configured import window, oldest first, using
+ * a single session so that folders, tests and test sets are only looked up once
+ * for the whole batch. Progress and throughput are reported in the task log.
+ * <p>
+ * The test classes of an export are checkpointed as they are published (see
+ * {@link Checkpoint}), so a failed import is resumed rather than repeated. The
+ * batch stops as soon as the server cannot be reached, leaving the remaining
+ * exports for the next run. The digests of skipped unchanged classes (see
+ * {@link ResultDigest}) are only recorded once an export has been imported.
+ */
+@Extension
+public class DeferredImporter extends AsyncPeriodicWork {
+
+    private static final String QUEUE_DIRECTORY = "qc-exports";
+    private static final String POINTER_SUFFIX = ".txt";
+    private static final String PARTIAL_SUFFIX = ".tmp";
+    private static final String CHECKPOINT_SUFFIX = ".progress";
+    private static final Pattern WINDOW = Pattern.compile("(\\d{1,2})-(\\d{1,2})");
+
+    public DeferredImporter() {
+        super("Quality Center deferred import");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getRecurrencePeriod() {
+        return MIN * 15;
+    }
+
+    /**
+     * Write the plan to the build directory and queue it for import.
+     */
+    static void export(Run<?, ?> build, PublishPlan plan, PrintStream logger) throws IOException {
+        File export = File.createTempFile("qc-export-", ".bin", build.getRootDir());
+        plan.write(export);
+
+        File queue = queueDirectory();
+        if (!queue.isDirectory() && !queue.mkdirs()) {
+            throw new IOException("Failed to create directory: " + queue);
+        }
+        // Only complete pointers may end in POINTER_SUFFIX, or the importer could read an empty one
+        File partial = File.createTempFile("pending-", PARTIAL_SUFFIX, queue);
+        FileUtils.writeStringToFile(partial, export.getAbsolutePath(), "UTF-8");
+        String name = partial.getName();
+        File pointer = new File(queue, name.substring(0, name.length() - PARTIAL_SUFFIX.length()) + POINTER_SUFFIX);
+        if (!partial.renameTo(pointer)) {
+            FileUtils.deleteQuietly(partial);
+            throw new IOException("Failed to queue export for import: " + pointer);
+        }
+
+        logger.println("Exported " + plan.classes.size() + " test runs for deferred import to Quality Center: "
+                + export);
+    }
+
+    private static File queueDirectory() {
+        return new File(Jenkins.getActiveInstance().getRootDir(), QUEUE_DIRECTORY);
+    }
+
+    /**
+     * @param window A range of hours of the day (e.g. {@code 22-6}), or blank for any time.
+     * @return whether the given time falls within the import window.
+     */
+    static boolean isWithinWindow(String window, Calendar now) {
+        if (window == null || window.trim().length() == 0) {
+            return true;
+        }
+        Matcher matcher = WINDOW.matcher(window.trim());
+        if (!matcher.matches()) {
+            return false;
+        }
+        int start = Integer.parseInt(matcher.group(1));
+        int end = Integer.parseInt(matcher.group(2));
+        int hour = now.get(Calendar.HOUR_OF_DAY);
+        return start <= end ? hour >= start && hour < end : hour >= start || hour < end;
+    }
+
+    static boolean isValidWindow(String window) {
+        Matcher matcher = WINDOW.matcher(window.trim());
+        return matcher.matches() && Integer.parseInt(matcher.group(1)) < 24 && Integer.parseInt(matcher.group(2)) < 24;
+    }
+
+    /**
+     * @return whether the failure means the server could not be reached at all, in which case
+     *         the remaining exports would fail as well.
+     */
+    static boolean isConnectionFailure(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketException || cause instanceof SocketTimeoutException
+                    || cause instanceof UnknownHostException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Record the digests of the published test classes for the job that exported them, unless it
+     * was deleted or renamed since.
+     */
+    private static void recordDigests(PublishPlan plan, PrintStream logger) {
+        if (plan.job == null || (plan.digests.isEmpty() && !plan.fullRefresh)) {
+            return;
+        }
+        Job<?, ?> job = Jenkins.getActiveInstance().getItemByFullName(plan.job, Job.class);
+        if (job == null) {
+            logger.println("Job no longer exists, not recording digests: " + plan.job);
+            return;
+        }
+        try {
+            ResultDigest.record(job, plan);
+        } catch (IOException e) {
+            // The results were published, at worst they are published again
+            logger.println("Failed to record digests for " + plan.job + ": " + e);
+        }
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        QualityCenterIntegrationDescriptor descriptor = Jenkins.getActiveInstance()
+                .getDescriptorByType(QualityCenterIntegrationDescriptor.class);
+        if (descriptor == null || descriptor.getUrl() == null
+                || !isWithinWindow(descriptor.getImportWindow(), Calendar.getInstance())) {
+            return;
+        }
+
+        File[] pending = queueDirectory().listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(POINTER_SUFFIX);
+            }
+        });
+        if (pending == null || pending.length == 0) {
+            return;
+        }
+        Arrays.sort(pending, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return Long.valueOf(a.lastModified()).compareTo(b.lastModified());
+            }
+        });
+
+        PrintStream logger = listener.getLogger();
+        PrintStream quiet = new PrintStream(new NullOutputStream());
+        logger.println("Importing " + pending.length + " deferred exports into " + descriptor.getUrl());
+
+        long started = System.currentTimeMillis();
+        int imported = 0;
+        int failed = 0;
+        int runs = 0;
+        int steps = 0;
+        QualityCenterSession session = QualityCenterSession.acquire(descriptor);
+        try {
+            for (int i = 0; i < pending.length; i++) {
+                if (!isWithinWindow(descriptor.getImportWindow(), Calendar.getInstance())) {
+                    logger.println("Import window closed, " + (pending.length - i) + " exports left for later");
+                    break;
+                }
+
+                File export = new File(FileUtils.readFileToString(pending[i], "UTF-8").trim());
+                Checkpoint checkpoint = new Checkpoint(new File(pending[i].getPath() + CHECKPOINT_SUFFIX));
+                if (!export.isFile()) {
+                    logger.println("Export no longer exists (build deleted?): " + export);
+                    FileUtils.deleteQuietly(pending[i]);
+                    checkpoint.delete();
+                    continue;
+                }
+
+                try {
+                    PublishPlan plan = PublishPlan.read(export);
+                    if (checkpoint.size() > 0) {
+                        logger.println("Resuming import of " + export + " after " + checkpoint.size() + " runs");
+                    }
+                    ResultPublisher.publish(session, plan, checkpoint, quiet);
+                    recordDigests(plan, logger);
+                    FileUtils.deleteQuietly(pending[i]);
+                    checkpoint.delete();
+                    imported++;
+                    runs += plan.classes.size();
+                    steps += plan.getCaseCount();
+                } catch (IOException | RuntimeException e) {
+                    failed++;
+                    if (isConnectionFailure(e)) {
+                        logger.println("Failed to connect to Quality Center, " + (pending.length - i)
+                                + " exports left for later: " + e);
+                        break;
+                    }
+                    logger.println("Failed to import " + export + " (will resume on the next run): " + e);
+                    continue;
+                }
+
+                double seconds = Math.max(1, System.currentTimeMillis() - started) / 1000.0;
+                logger.println(String.format("[%d/%d] Imported %s (%d runs, %d steps so far, %.1f runs/s)",
+                        i + 1, pending.length, export, runs, steps, runs / seconds));
+            }
+        } finally {
+            session.release();
+        }
+
+        double seconds = Math.max(1, System.currentTimeMillis() - started) / 1000.0;
+        logger.println(String.format("Imported %d exports (%d failed): %d runs and %d steps in %.1fs (%.1f runs/s)",
+                imported, failed, runs, steps, seconds, runs / seconds));
+    }
+
+}
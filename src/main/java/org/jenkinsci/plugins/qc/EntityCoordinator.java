@@ -0,0 +1,107 @@
+package org.jenkinsci.plugins.qc;
+
+import org.jenkinsci.plugins.qc.client.Entity;
+import org.jenkinsci.plugins.qc.client.Query;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Controller wide coordinator that collapses concurrent lookups and creations of
+ * the same Quality Center entity into a single request (single-flight).
+ * <p>
+ * Builds asking for an entity while another build is already fetching or
+ * creating it wait for that request and share its result, so that parallel
+ * builds neither scan the same folder repeatedly nor race to create duplicate
+ * entities. Shared entities must be treated as read-only by the callers.
+ */
+final class EntityCoordinator {
+
+    static final EntityCoordinator INSTANCE = new EntityCoordinator();
+
+    private final ConcurrentMap<String, FutureTask<?>> inflight = new ConcurrentHashMap<String, FutureTask<?>>();
+
+    private EntityCoordinator() {
+    }
+
+    /**
+     * Build a coordination key from its parts (typically server, domain,
+     * project, resource, parent and name).
+     */
+    static String key(String... parts) {
+        StringBuilder builder = new StringBuilder();
+        for (String part : parts) {
+            builder.append(part.replace("\\", "\\\\").replace("/", "\\/")).append('/');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Execute the call, unless a call with the same key is already running, in
+     * which case wait for it and return its result instead.
+     */
+    @SuppressWarnings("unchecked")
+    <T> T coalesce(String key, Callable<T> call) throws IOException, InterruptedException {
+        FutureTask<T> task = new FutureTask<T>(call);
+        FutureTask<T> running = (FutureTask<T>) inflight.putIfAbsent(key, task);
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                inflight.remove(key, task);
+            }
+            running = task;
+        }
+        return await(running);
+    }
+
+    /**
+     * Wait for the result of a task, rethrowing its failure as thrown by the
+     * task where possible.
+     */
+    static <T> T await(Future<T> task) throws IOException, InterruptedException {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Find the first entity matching the query, or create (post) the given
+     * entity when none exists.
+     */
+    Entity findOrCreate(String key, final Query query, final Entity entity) throws IOException,
+            InterruptedException {
+        return coalesce(key, new Callable<Entity>() {
+            public Entity call() {
+                List<Entity> existing = query.execute();
+                if (!existing.isEmpty()) {
+                    return existing.get(0);
+                }
+                entity.post();
+                return entity;
+            }
+        });
+    }
+
+}
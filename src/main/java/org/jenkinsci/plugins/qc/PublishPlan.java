@@ -0,0 +1,276 @@
+package org.jenkinsci.plugins.qc;
+
+import hudson.tasks.junit.CaseResult;
+import hudson.tasks.junit.ClassResult;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Everything needed to publish a set of test results to Quality Center: the
+ * target folders, the test set and a run (with its run steps) per test class.
+ * <p>
+ * A plan is independent of the build that produced it, so it can be written to
+ * disk in a compact, versioned format (gzipped, length prefixed UTF-8 strings)
+ * and published later by the {@link DeferredImporter}. The plan also carries
+ * the digests of its test classes (see {@link ResultDigest}), which are only
+ * recorded for the job once the plan has actually been published.
+ */
+final class PublishPlan {
+
+    private static final int MAGIC = 0x51435050; // "QCPP"
+    private static final int VERSION = 1;
+
+    final String domain;
+    final String project;
+    final String planFolder;
+    final String labFolder;
+    final String userDefinedFields;
+    final String runFields;
+    final String runStepFields;
+    final String setName;
+    final ShardStrategy shardStrategy;
+    final int shardSize;
+    final String host;
+    final List<TestClass> classes;
+    final String job;
+    final int buildNumber;
+    final boolean fullRefresh;
+    final Map<String, String> digests;
+
+    /**
+     * @param job         The full name of the job that produced the results.
+     * @param buildNumber The number of the build that produced the results.
+     * @param fullRefresh Whether the plan holds all test classes of a full refresh (see
+     *                    {@link ResultDigest#isFullRefreshDue}), recorded once published.
+     * @param digests     The digests of the test classes by name, recorded once published (empty if
+     *                    not skipping unchanged classes).
+     */
+    PublishPlan(String domain, String project, String planFolder, String labFolder, String userDefinedFields,
+                String runFields, String runStepFields, String setName, ShardStrategy shardStrategy, int shardSize,
+                String host, List<TestClass> classes, String job, int buildNumber, boolean fullRefresh,
+                Map<String, String> digests) {
+        this.domain = domain;
+        this.project = project;
+        this.planFolder = planFolder;
+        this.labFolder = labFolder;
+        this.userDefinedFields = userDefinedFields;
+        this.runFields = runFields;
+        this.runStepFields = runStepFields;
+        this.setName = setName;
+        this.shardStrategy = shardStrategy;
+        this.shardSize = shardSize;
+        this.host = host;
+        this.classes = Collections.unmodifiableList(classes);
+        this.job = job;
+        this.buildNumber = buildNumber;
+        this.fullRefresh = fullRefresh;
+        this.digests = Collections.unmodifiableMap(digests);
+    }
+
+    /**
+     * The outcome of a test class, published as a run.
+     */
+    static final class TestClass {
+
+        final String name;
+        final boolean passed;
+        final int duration;
+        final List<TestCase> cases;
+
+        TestClass(String name, boolean passed, int duration, List<TestCase> cases) {
+            this.name = name;
+            this.passed = passed;
+            this.duration = duration;
+            this.cases = Collections.unmodifiableList(cases);
+        }
+
+        static TestClass of(ClassResult classResult) {
+            List<TestCase> cases = new ArrayList<TestCase>();
+            for (CaseResult caseResult : classResult.getChildren()) {
+                cases.add(TestCase.of(caseResult));
+            }
+            return new TestClass(classResult.getFullName(), classResult.isPassed(),
+                    Math.round(classResult.getDuration()), cases);
+        }
+
+    }
+
+    /**
+     * The outcome of a test case, published as a run step.
+     */
+    static final class TestCase {
+
+        final String name;
+        final boolean passed;
+        final String actual;
+
+        TestCase(String name, boolean passed, String actual) {
+            this.name = name;
+            this.passed = passed;
+            this.actual = actual;
+        }
+
+        static TestCase of(CaseResult caseResult) {
+            // Only add actual result on failure
+            String actual = null;
+            if (!caseResult.isPassed()) {
+                StringBuilder builder = new StringBuilder();
+                if (caseResult.getStdout() != null) {
+                    builder.append(caseResult.getStdout()).append("\n");
+                }
+                if (caseResult.getStderr() != null) {
+                    builder.append(caseResult.getStderr()).append("\n");
+                }
+                if (caseResult.getErrorDetails() != null) {
+                    builder.append(caseResult.getErrorDetails()).append("\n");
+                }
+                if (caseResult.getErrorStackTrace() != null) {
+                    builder.append(caseResult.getErrorStackTrace());
+                }
+                actual = builder.toString();
+            }
+            return new TestCase(caseResult.getName(), caseResult.isPassed(), actual);
+        }
+
+    }
+
+    /**
+     * @return the number of test cases (run steps) in the plan.
+     */
+    int getCaseCount() {
+        int count = 0;
+        for (TestClass testClass : classes) {
+            count += testClass.cases.size();
+        }
+        return count;
+    }
+
+    void write(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(
+                new FileOutputStream(file))));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, domain);
+            writeString(out, project);
+            writeString(out, planFolder);
+            writeString(out, labFolder);
+            writeString(out, userDefinedFields);
+            writeString(out, runFields);
+            writeString(out, runStepFields);
+            writeString(out, setName);
+            writeString(out, shardStrategy.name());
+            out.writeInt(shardSize);
+            writeString(out, host);
+            out.writeInt(classes.size());
+            for (TestClass testClass : classes) {
+                writeString(out, testClass.name);
+                out.writeBoolean(testClass.passed);
+                out.writeInt(testClass.duration);
+                out.writeInt(testClass.cases.size());
+                for (TestCase testCase : testClass.cases) {
+                    writeString(out, testCase.name);
+                    out.writeBoolean(testCase.passed);
+                    writeString(out, testCase.actual);
+                }
+            }
+            writeString(out, job);
+            out.writeInt(buildNumber);
+            out.writeBoolean(fullRefresh);
+            out.writeInt(digests.size());
+            for (Map.Entry<String, String> digest : digests.entrySet()) {
+                writeString(out, digest.getKey());
+                writeString(out, digest.getValue());
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    static PublishPlan read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(
+                new FileInputStream(file))));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a Quality Center export: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported Quality Center export version " + version + ": " + file);
+            }
+            String domain = readString(in);
+            String project = readString(in);
+            String planFolder = readString(in);
+            String labFolder = readString(in);
+            String userDefinedFields = readString(in);
+            String runFields = readString(in);
+            String runStepFields = readString(in);
+            String setName = readString(in);
+            ShardStrategy shardStrategy = ShardStrategy.valueOf(readString(in));
+            int shardSize = in.readInt();
+            String host = readString(in);
+            int classCount = in.readInt();
+            List<TestClass> classes = new ArrayList<TestClass>(classCount);
+            for (int i = 0; i < classCount; i++) {
+                String name = readString(in);
+                boolean passed = in.readBoolean();
+                int duration = in.readInt();
+                int caseCount = in.readInt();
+                List<TestCase> cases = new ArrayList<TestCase>(caseCount);
+                for (int j = 0; j < caseCount; j++) {
+                    cases.add(new TestCase(readString(in), in.readBoolean(), readString(in)));
+                }
+                classes.add(new TestClass(name, passed, duration, cases));
+            }
+            String job = readString(in);
+            int buildNumber = in.readInt();
+            boolean fullRefresh = in.readBoolean();
+            int digestCount = in.readInt();
+            Map<String, String> digests = new LinkedHashMap<String, String>();
+            for (int i = 0; i < digestCount; i++) {
+                digests.put(readString(in), readString(in));
+            }
+            return new PublishPlan(domain, project, planFolder, labFolder, userDefinedFields, runFields,
+                    runStepFields, setName, shardStrategy, shardSize, host, classes, job, buildNumber,
+                    fullRefresh, digests);
+        } finally {
+            in.close();
+        }
+    }
+
+    // DataOutput.writeUTF is limited to 64KB, which stack traces can exceed
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+}
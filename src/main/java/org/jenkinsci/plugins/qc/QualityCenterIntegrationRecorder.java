@@ -20,8 +20,10 @@ import net.sf.json.JSONObject;
 import org.apache.commons.validator.routines.UrlValidator;
 import org.jenkinsci.Symbol;
 import org.jenkinsci.plugins.qc.client.Entity;
+import org.jenkinsci.plugins.qc.client.Options;
 import org.jenkinsci.plugins.qc.client.QualityCenter;
 import org.jenkinsci.plugins.qc.client.Query;
+import org.jenkinsci.plugins.qc.client.Throttle;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
@@ -32,7 +34,6 @@ import javax.servlet.ServletException;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.*;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -51,7 +52,15 @@ public class QualityCenterIntegrationRecorder extends Recorder implements Simple
     private final String planFolder;
     private final String labFolder;
     private String userDefinedFields;
+    private String runFields;
+    private String runStepFields;
+    private String attachments;
+    private ShardStrategy shardStrategy = ShardStrategy.NONE;
+    private int shardSize;
     private boolean failOnNoTestResults = true;
+    private boolean skipUnchanged;
+    private int fullRefreshInterval;
+    private boolean deferredImport;
 
     /**
      * Constructor
@@ -80,11 +89,6 @@ public class QualityCenterIntegrationRecorder extends Recorder implements Simple
     public void perform(@Nonnull Run<?, ?> build, @Nonnull FilePath filePath, @Nonnull Launcher launcher, @Nonnull TaskListener listener) throws InterruptedException, IOException {
         PrintStream logger = listener.getLogger();
 
-        QualityCenterIntegrationDescriptor descriptor = getDescriptor();
-        QualityCenter qc = QualityCenter.create(descriptor.url);
-
-        logger.println("Synchronizing test results with ALM instance: " + descriptor.url);
-
         TestResultAction report = build.getAction(TestResultAction.class);
 
         if (report == null) {
@@ -95,174 +99,23 @@ public class QualityCenterIntegrationRecorder extends Recorder implements Simple
             return;
         }
 
-        // Authenticate Quality Center Session
-        if (!qc.login(descriptor.username, descriptor.password)) {
-            throw new AbortException("Authentication failed!");
-        }
-
-        final Query query = qc.query(domain, project);
-        Entity planFolderEntity = resolveEntityPath(query.resource("test-folders"), planFolder.split("/"));
-        Entity labFolderEntity = resolveEntityPath(query.resource("test-set-folders"), labFolder.split("/"));
-
-        if (planFolderEntity == null) {
-            throw new AbortException("Plan folder '" + planFolder + "' does not exists.");
-        }
-
-        if (labFolderEntity == null) {
-            throw new AbortException("Lab folder '" + labFolder + "' does not exists.");
-        }
-
-        // Map out all the tests by name
-        Map<String, Entity> tests = new HashMap<String, Entity>();
-        Map<String, Entity> testsById = new HashMap<String, Entity>();
-        for (Entity e : qc.query(domain, project).resource("tests")
-                .filter("parent-id[={0}]", planFolderEntity.get("id")).execute()) {
-            tests.put(e.get("name"), e);
-            testsById.put(e.get("id"), e);
-        }
-
-        TestResult result = report.getResult();
-        for (PackageResult packageResult : result.getChildren()) {
-            for (ClassResult classResult : packageResult.getChildren()) {
-                if (!tests.containsKey(classResult.getFullName())) {
-                    logger.println("Creating test: " + classResult.getFullName());
-                    Entity e = qc.create(domain, project, "tests");
-                    e.setType("test");
-                    e.add("name", classResult.getFullName());
-                    e.add("parent-id", planFolderEntity.get("id"));
-                    e.add("owner", descriptor.username);
-                    e.add("subtype-id", "VAPI-XP-TEST");
-
-                    if (userDefinedFields != null) {
-                        Matcher matcher = Pattern.compile("([^=]+)=([^=]+)(?:,|$)").matcher(userDefinedFields);
-                        while (matcher.find()) {
-                            e.add(matcher.group(1), matcher.group(2));
-                        }
-                    }
-
-                    e.add("status", "Ready");
-                    e.post();
-                    tests.put(e.get("name"), e);
-                } else {
-                    logger.println("Test exists: " + classResult.getFullName());
-                }
-            }
-        }
-
-        // Check if test set exists (create it if it is missing)
-        String jobName = build.getDisplayName();
-        List<Entity> sets = qc.query(domain, project).resource("test-sets")
-                .filter("parent-id[={0}];name[\"{1}\"]", labFolderEntity.get("id"), jobName).execute();
-        Entity set = sets.isEmpty() ? null : sets.get(0);
-        if (set == null) {
-            logger.println("Creating test set: " + jobName);
-            Entity e = qc.create(domain, project, "test-sets");
-            e.setType("test-set");
-            e.add("subtype-id", "hp.qc.test-set.default");
-            e.add("parent-id", labFolderEntity.get("id"));
-            e.add("name", jobName);
-            e.post();
-            set = e;
-        } else {
-            logger.println("Test set exists: " + jobName);
-        }
-
-        // Map out all the test instances by name
-        Map<String, Entity> instances = new HashMap<String, Entity>();
-        for (Entity e : qc.query(domain, project).resource("test-instances").filter("cycle-id[{0}]", set.get("id"))
-                .execute()) {
-            Entity test = testsById.get(e.get("test-id"));
-            instances.put(test.get("name"), e);
-        }
-
-        // Check if a test instance already exists (create if it is missing)
-        result = report.getResult();
-        for (PackageResult packageResult : result.getChildren()) {
-            for (ClassResult classResult : packageResult.getChildren()) {
-                if (!instances.containsKey(classResult.getFullName())) {
-                    logger.println("Creating test instance: " + classResult.getFullName());
-                    Entity e = qc.create(domain, project, "test-instances");
-                    e.setType("test-instance");
-                    e.add("subtype-id", "hp.qc.test-instance.VAPI-XP-TEST");
-                    e.add("test-id", tests.get(classResult.getFullName()).get("id"));
-                    e.add("test-config-id", tests.get(classResult.getFullName()).get("id"));
-                    e.add("cycle-id", set.get("id"));
-                    e.add("test-order", "0");
-                    e.post();
-
-                    instances.put(classResult.getFullName(), e);
-                } else {
-                    logger.println("Test instance exists: " + classResult.getFullName());
-                }
-            }
-        }
-
-        result = report.getResult();
-        for (PackageResult packageResult : result.getChildren()) {
-            for (ClassResult classResult : packageResult.getChildren()) {
-                String status = classResult.isPassed() ? "Passed" : "Failed";
-                Computer computer = Computer.currentComputer();
-                logger.println("Adding test run: " + classResult.getFullName() + " (" + status + ")");
-                Entity i = instances.get(classResult.getFullName());
-                Entity r = qc.create(domain, project, "runs");
-                r.setType("run");
-                r.add("subtype-id", "hp.qc.run.VAPI-XP-TEST");
-                r.add("owner", descriptor.username);
-                r.add("state", "Finished");
-                r.add("cycle-id", set.get("id"));
-                r.add("testcycl-id", i.get("id"));
-                r.add("test-id", i.get("test-id"));
-                r.add("duration", Integer.toString(Math.round(classResult.getDuration())));
-                r.add("name", build.getDisplayName());
-                r.add("host", computer != null ? computer.getHostName() : "");
-                r.add("status", "Not Completed"); // Must be set 'Not
-                // Completed' initially
-                r.post();
-
-                // Updated the run to pass/fail (will trigger test instance
-                // to be updated also)
-                r.set("status", status);
-                r.put();
-
-                // Add a run step for each test case
-                for (CaseResult caseResult : classResult.getChildren()) {
-                    Entity step = qc.create(domain, project, "runs/" + r.get("id") + "/run-steps");
-                    String stepStatus = caseResult.isPassed() ? "Passed" : "Failed";
-                    step.setType("run-step");
-                    step.add("parent-id", r.get("id"));
-                    step.add("name", caseResult.getName());
-                    step.add("status", stepStatus);
-                    // Only add actual result on failure
-                    if (!caseResult.isPassed()) {
-                        StringBuilder actual = new StringBuilder();
-                        if (caseResult.getStdout() != null) {
-                            actual.append(caseResult.getStdout()).append("\n");
-                        }
-                        if (caseResult.getStderr() != null) {
-                            actual.append(caseResult.getStderr()).append("\n");
-                        }
-                        if (caseResult.getErrorDetails() != null) {
-                            actual.append(caseResult.getErrorDetails()).append("\n");
-                        }
-                        if (caseResult.getErrorStackTrace() != null) {
-                            actual.append(caseResult.getErrorStackTrace());
-                        }
-                        step.add("actual", actual.toString());
-                    }
-                    logger.println("Adding test run step: " + caseResult.getName() + " (" + stepStatus + ")");
-                    step.post();
-                }
-
-            }
-        }
-
+        Computer computer = Computer.currentComputer();
+        new ResultPublisher(domain, project, planFolder, labFolder)
+                .userDefinedFields(userDefinedFields)
+                .runFields(runFields, runStepFields)
+                .skipUnchanged(skipUnchanged, fullRefreshInterval)
+                .deferred(deferredImport)
+                .shards(shardStrategy, shardSize)
+                .attachments(filePath, attachments)
+                .publish(getDescriptor(), build, report.getResult(), computer != null ? computer.getHostName() : null,
+                        logger);
     }
 
-    private static Entity resolveEntityPath(Query query, String... path) {
+    static Entity resolveEntityPath(Query query, String... path) {
         int parentId = 0;
         Entity entity = null;
         for (String next : Arrays.asList(path)) {
-            List<Entity> result = query.filter("parent-id[={0}];name[\"{1}\"]", Long.toString(parentId), next).execute();
+            List<Entity> result = query.fields("id").filter("parent-id[={0}];name[\"{1}\"]", Long.toString(parentId), next).execute();
             if (result.isEmpty()) {
                 entity = null;
                 break;
@@ -319,6 +172,125 @@ public class QualityCenterIntegrationRecorder extends Recorder implements Simple
         return userDefinedFields;
     }
 
+    public String getRunFields() {
+        return runFields;
+    }
+
+    /**
+     * Setter for optional run fields.
+     *
+     * @param runFields Any additional fields and values that will be populated when
+     *                  creating QC runs.
+     */
+    @DataBoundSetter
+    public void setRunFields(String runFields) {
+        this.runFields = runFields;
+    }
+
+    public String getRunStepFields() {
+        return runStepFields;
+    }
+
+    /**
+     * Setter for optional run step fields.
+     *
+     * @param runStepFields Any additional fields and values that will be populated when
+     *                      creating QC run steps.
+     */
+    @DataBoundSetter
+    public void setRunStepFields(String runStepFields) {
+        this.runStepFields = runStepFields;
+    }
+
+    public String getAttachments() {
+        return attachments;
+    }
+
+    /**
+     * Setter for optional attachments.
+     *
+     * @param attachments An Ant style pattern of workspace files to attach to each run, in
+     *                    which {class} is replaced with the name of the test class.
+     */
+    @DataBoundSetter
+    public void setAttachments(String attachments) {
+        this.attachments = attachments;
+    }
+
+    public boolean isSkipUnchanged() {
+        return skipUnchanged;
+    }
+
+    /**
+     * Setter for optional skip unchanged flag.
+     *
+     * @param skipUnchanged If {@code true} then runs are only published for test classes
+     *                      whose outcome changed since they were last published.
+     */
+    @DataBoundSetter
+    public void setSkipUnchanged(boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+    }
+
+    public int getFullRefreshInterval() {
+        return fullRefreshInterval;
+    }
+
+    /**
+     * Setter for optional full refresh interval.
+     *
+     * @param fullRefreshInterval The number of builds after which all test classes are
+     *                            published again when skipping unchanged results (zero for never).
+     */
+    @DataBoundSetter
+    public void setFullRefreshInterval(int fullRefreshInterval) {
+        this.fullRefreshInterval = fullRefreshInterval;
+    }
+
+    public ShardStrategy getShardStrategy() {
+        return shardStrategy != null ? shardStrategy : ShardStrategy.NONE;
+    }
+
+    /**
+     * Setter for optional shard strategy.
+     *
+     * @param shardStrategy How the runs of a build are partitioned into test sets.
+     */
+    @DataBoundSetter
+    public void setShardStrategy(ShardStrategy shardStrategy) {
+        this.shardStrategy = shardStrategy;
+    }
+
+    public int getShardSize() {
+        return shardSize;
+    }
+
+    /**
+     * Setter for optional shard size.
+     *
+     * @param shardSize The number of test sets when sharding by hash, or the maximum number
+     *                  of runs per test set when sharding by size.
+     */
+    @DataBoundSetter
+    public void setShardSize(int shardSize) {
+        this.shardSize = shardSize;
+    }
+
+    public boolean isDeferredImport() {
+        return deferredImport;
+    }
+
+    /**
+     * Setter for optional deferred import flag.
+     *
+     * @param deferredImport If {@code true} then results are exported to the build directory
+     *                       and imported into Quality Center later, during the import window.
+     */
+    @DataBoundSetter
+    public void setDeferredImport(boolean deferredImport) {
+        this.deferredImport = deferredImport;
+    }
+
     @Override
     public QualityCenterIntegrationDescriptor getDescriptor() {
         return (QualityCenterIntegrationDescriptor) super.getDescriptor();
@@ -331,10 +303,26 @@ public class QualityCenterIntegrationRecorder extends Recorder implements Simple
         private String url;
         private String username;
         private String password;
+        private int requestRate;
+        private int maxConcurrency = Throttle.DEFAULT_MAX_CONCURRENCY;
+        private boolean compression = true;
+        private boolean requestCompression;
+        private boolean chunkedRequests;
+        private String importWindow;
+        private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+        private int readTimeout = DEFAULT_READ_TIMEOUT;
+        private int hedgePercentile;
+        private int uploadBandwidth;
+        private int maxAttachmentSize;
+        private boolean warmUp = true;
+
+        private static final int DEFAULT_CONNECT_TIMEOUT = 30;
+        private static final int DEFAULT_READ_TIMEOUT = 120;
 
         public QualityCenterIntegrationDescriptor() {
             super(QualityCenterIntegrationRecorder.class);
             load();
+            configureThrottle();
         }
 
         /**
@@ -351,16 +339,41 @@ public class QualityCenterIntegrationRecorder extends Recorder implements Simple
             url = json.getString("url");
             username = json.getString("username");
             password = json.getString("password");
+            requestRate = json.optInt("requestRate", 0);
+            maxConcurrency = json.optInt("maxConcurrency", Throttle.DEFAULT_MAX_CONCURRENCY);
+            compression = json.optBoolean("compression", true);
+            requestCompression = json.optBoolean("requestCompression");
+            chunkedRequests = json.optBoolean("chunkedRequests");
+            importWindow = json.optString("importWindow");
+            connectTimeout = json.optInt("connectTimeout", DEFAULT_CONNECT_TIMEOUT);
+            readTimeout = json.optInt("readTimeout", DEFAULT_READ_TIMEOUT);
+            hedgePercentile = json.optInt("hedgePercentile", 0);
+            uploadBandwidth = json.optInt("uploadBandwidth", 0);
+            maxAttachmentSize = json.optInt("maxAttachmentSize", 0);
+            warmUp = json.optBoolean("warmUp", true);
             save();
+            configureThrottle();
             return super.configure(req, json);
         }
 
+        /**
+         * Apply the request rate, concurrency and bandwidth settings to the
+         * throttle that is shared by all builds publishing to the configured server.
+         */
+        private void configureThrottle() {
+            if (url != null) {
+                Throttle throttle = Throttle.forServer(url);
+                throttle.configure(requestRate, maxConcurrency);
+                throttle.configureBandwidth(uploadBandwidth * 1024L);
+            }
+        }
+
         public FormValidation doTestConnection(@QueryParameter("url") final String url,
                                                @QueryParameter("username") final String username, @QueryParameter("password") final String password)
                 throws IOException, ServletException {
 
             // We always want a fresh authentication request.
-            if (QualityCenter.create(url).login(username, password)) {
+            if (QualityCenter.create(url, getClientOptions()).login(username, password)) {
                 return FormValidation.ok("Authenticated with server successfully.");
             }
 
@@ -386,6 +399,45 @@ public class QualityCenterIntegrationRecorder extends Recorder implements Simple
             return FormValidation.ok();
         }
 
+        public FormValidation doCheckRequestRate(@QueryParameter final String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckMaxConcurrency(@QueryParameter final String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+
+        public FormValidation doCheckConnectTimeout(@QueryParameter final String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckReadTimeout(@QueryParameter final String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckHedgePercentile(@QueryParameter final String value) {
+            FormValidation validation = FormValidation.validateNonNegativeInteger(value);
+            if (validation.kind == FormValidation.Kind.OK && Integer.parseInt(value) > 99) {
+                return FormValidation.error("Must be a percentile between 1 and 99 (or 0 to disable).");
+            }
+            return validation;
+        }
+
+        public FormValidation doCheckUploadBandwidth(@QueryParameter final String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckMaxAttachmentSize(@QueryParameter final String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckImportWindow(@QueryParameter final String value) {
+            if (value.trim().length() == 0 || DeferredImporter.isValidWindow(value)) {
+                return FormValidation.ok();
+            }
+            return FormValidation.error("Must be a range of hours of the day (e.g. 22-6).");
+        }
+
         public FormValidation doCheckPlanFolder(@QueryParameter("planFolder") final String folder,
                                                 @QueryParameter("domain") final String domain, @QueryParameter("project") final String project) {
 
@@ -393,7 +445,7 @@ public class QualityCenterIntegrationRecorder extends Recorder implements Simple
                 return FormValidation.error("Please enter a plan folder path.");
             }
 
-            QualityCenter qc = QualityCenter.create(url);
+            QualityCenter qc = QualityCenter.create(url, getClientOptions());
             qc.login(username, password);
             Entity e = resolveEntityPath(qc.query(domain, project).resource("test-folders"), folder.split("/"));
             qc.logout();
@@ -411,7 +463,7 @@ public class QualityCenterIntegrationRecorder extends Recorder implements Simple
                 return FormValidation.error("Please enter a lab folder path.");
             }
 
-            QualityCenter qc = QualityCenter.create(url);
+            QualityCenter qc = QualityCenter.create(url, getClientOptions());
             qc.login(username, password);
             Entity e = resolveEntityPath(qc.query(domain, project).resource("test-set-folders"), folder.split("/"));
             qc.logout();
@@ -424,18 +476,42 @@ public class QualityCenterIntegrationRecorder extends Recorder implements Simple
 
         public FormValidation doCheckUserDefinedFields(
                 @QueryParameter("userDefinedFields") final String userDefinedFields) {
+            return validateFields(userDefinedFields);
+        }
+
+        public FormValidation doCheckRunFields(@QueryParameter final String value) {
+            return validateFields(value);
+        }
+
+        public FormValidation doCheckRunStepFields(@QueryParameter final String value) {
+            return validateFields(value);
+        }
 
-            if (userDefinedFields.length() == 0) {
+        private static FormValidation validateFields(String fields) {
+
+            if (fields.length() == 0) {
                 return FormValidation.ok();
             }
 
-            if (Pattern.compile("(([^=]+)=([^=]+)(?:,|$))+").matcher(userDefinedFields).matches()) {
+            if (Pattern.compile("(([^=]+)=([^=]+)(?:,|$))+").matcher(fields).matches()) {
                 return FormValidation.ok();
             }
 
             return FormValidation.error("Must be a key-value list separated by commas (e.g. key1=value1,key2=value2)");
         }
 
+        public FormValidation doCheckFullRefreshInterval(@QueryParameter final String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckShardSize(@QueryParameter final String value,
+                                               @QueryParameter final String shardStrategy) {
+            if (ShardStrategy.HASH.name().equals(shardStrategy) || ShardStrategy.SIZE.name().equals(shardStrategy)) {
+                return FormValidation.validatePositiveInteger(value);
+            }
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
         /**
          * {@inheritDoc}
          */
@@ -465,8 +541,96 @@ public class QualityCenterIntegrationRecorder extends Recorder implements Simple
             return password;
         }
 
+        /**
+         * @return the maximum number of requests per second sent to Quality Center
+         * (zero for unlimited).
+         */
+        public int getRequestRate() {
+            return requestRate;
+        }
+
+        /**
+         * @return the maximum number of concurrent requests sent to Quality Center.
+         */
+        public int getMaxConcurrency() {
+            return maxConcurrency;
+        }
+
+        public boolean isCompression() {
+            return compression;
+        }
+
+        public boolean isRequestCompression() {
+            return requestCompression;
+        }
+
+        public boolean isChunkedRequests() {
+            return chunkedRequests;
+        }
+
+        /**
+         * @return the range of hours of the day (e.g. 22-6) in which deferred
+         * exports are imported, or blank for any time.
+         */
+        public String getImportWindow() {
+            return importWindow;
+        }
+
+        /**
+         * @return the connect timeout in seconds (zero for none).
+         */
+        public int getConnectTimeout() {
+            return connectTimeout;
+        }
+
+        /**
+         * @return the read timeout in seconds (zero for none).
+         */
+        public int getReadTimeout() {
+            return readTimeout;
+        }
+
+        /**
+         * @return the latency percentile after which idempotent requests are
+         * hedged (zero if disabled).
+         */
+        public int getHedgePercentile() {
+            return hedgePercentile;
+        }
+
+        /**
+         * @return the upload bandwidth limit in KB per second (zero for unlimited).
+         */
+        public int getUploadBandwidth() {
+            return uploadBandwidth;
+        }
+
+        /**
+         * @return the maximum size of an attachment in MB (zero for unlimited).
+         */
+        public int getMaxAttachmentSize() {
+            return maxAttachmentSize;
+        }
+
+        /**
+         * @return whether builds log in and prefetch from Quality Center as soon
+         * as they start (see {@link SessionWarmUp}).
+         */
+        public boolean isWarmUp() {
+            return warmUp;
+        }
+
+        /**
+         * @return the transport options for Quality Center clients.
+         */
+        Options getClientOptions() {
+            return new Options().compression(compression).requestCompression(requestCompression)
+                    .chunked(chunkedRequests).connectTimeout(connectTimeout * 1000).readTimeout(readTimeout * 1000)
+                    .hedgePercentile(hedgePercentile);
+        }
+
         public ListBoxModel doFillDomainItems() {
-            QualityCenter qc = QualityCenter.create(url);
+            QualityCenter qc = QualityCenter.create(url, getClientOptions());
             qc.login(username, password);
 
             ListBoxModel model = new ListBoxModel();
@@ -480,7 +644,7 @@ public class QualityCenterIntegrationRecorder extends Recorder implements Simple
         }
 
         public ListBoxModel doFillProjectItems(@QueryParameter("domain") String domain) {
-            QualityCenter qc = QualityCenter.create(url);
+            QualityCenter qc = QualityCenter.create(url, getClientOptions());
             qc.login(username, password);
 
             ListBoxModel model = new ListBoxModel();
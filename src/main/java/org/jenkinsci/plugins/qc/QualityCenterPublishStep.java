@@ -0,0 +1,374 @@
+package org.jenkinsci.plugins.qc;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Computer;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.tasks.junit.JUnitParser;
+import hudson.tasks.junit.TestResult;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.qc.QualityCenterIntegrationRecorder.QualityCenterIntegrationDescriptor;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractSynchronousNonBlockingStepExecution;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import javax.inject.Inject;
+import java.io.PrintStream;
+
+/**
+ * Pipeline step that publishes a subset of the unit test results of a build to
+ * HP ALM Quality Center, e.g. the reports of a single stage:
+ * <pre>
+ * qcPublish testResults: 'target/surefire-reports/*.xml', domain: 'DEFAULT', project: 'Demo',
+ *           planFolder: 'Subject/Unit Tests', labFolder: 'Root/Unit Tests'
+ * </pre>
+ * Each invocation publishes its own results as soon as it runs, while later
+ * stages are still running. Concurrent invocations share the same Quality
+ * Center session and caches (see {@link QualityCenterSession}) and add their
+ * runs to the same test set, named after the build.
+ */
+public class QualityCenterPublishStep extends AbstractStepImpl {
+
+    // Each call shards its own classes by position, so several calls of a build would overfill the same test sets
+    private static final String SIZE_NOT_SUPPORTED = "Test sets of limited size are not supported by qcPublish, "
+            + "use a test set per package or a fixed number of test sets instead.";
+
+    private final String testResults;
+    private final String domain;
+    private final String project;
+    private final String planFolder;
+    private final String labFolder;
+    private String userDefinedFields;
+    private String runFields;
+    private String runStepFields;
+    private String attachments;
+    private ShardStrategy shardStrategy = ShardStrategy.NONE;
+    private int shardSize;
+    private boolean failOnNoTestResults = true;
+    private boolean skipUnchanged;
+    private int fullRefreshInterval;
+    private boolean deferredImport;
+
+    /**
+     * Constructor
+     *
+     * @param testResults An Ant style pattern of the JUnit report files to publish.
+     * @param domain      The QC domain.
+     * @param project     The QC project.
+     * @param planFolder  The QC plan folder that test plans shall be created in.
+     * @param labFolder   The QC lab folder that new test sets shall be created in.
+     */
+    @DataBoundConstructor
+    public QualityCenterPublishStep(String testResults, String domain, String project, String planFolder,
+                                    String labFolder) {
+        this.testResults = testResults;
+        this.domain = domain;
+        this.project = project;
+        this.planFolder = planFolder;
+        this.labFolder = labFolder;
+    }
+
+    public String getTestResults() {
+        return testResults;
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    public String getProject() {
+        return project;
+    }
+
+    public String getPlanFolder() {
+        return planFolder;
+    }
+
+    public String getLabFolder() {
+        return labFolder;
+    }
+
+    public String getUserDefinedFields() {
+        return userDefinedFields;
+    }
+
+    /**
+     * Setter for optional user defined fields.
+     *
+     * @param userDefinedFields Any additional user defined fields and values that will be
+     *                          populated when creating new QC test plans.
+     */
+    @DataBoundSetter
+    public void setUserDefinedFields(String userDefinedFields) {
+        this.userDefinedFields = userDefinedFields;
+    }
+
+    public String getRunFields() {
+        return runFields;
+    }
+
+    /**
+     * Setter for optional run fields.
+     *
+     * @param runFields Any additional fields and values that will be populated when
+     *                  creating QC runs.
+     */
+    @DataBoundSetter
+    public void setRunFields(String runFields) {
+        this.runFields = runFields;
+    }
+
+    public String getRunStepFields() {
+        return runStepFields;
+    }
+
+    /**
+     * Setter for optional run step fields.
+     *
+     * @param runStepFields Any additional fields and values that will be populated when
+     *                      creating QC run steps.
+     */
+    @DataBoundSetter
+    public void setRunStepFields(String runStepFields) {
+        this.runStepFields = runStepFields;
+    }
+
+    public String getAttachments() {
+        return attachments;
+    }
+
+    /**
+     * Setter for optional attachments.
+     *
+     * @param attachments An Ant style pattern of workspace files to attach to each run, in
+     *                    which {class} is replaced with the name of the test class.
+     */
+    @DataBoundSetter
+    public void setAttachments(String attachments) {
+        this.attachments = attachments;
+    }
+
+    public boolean isFailOnNoTestResults() {
+        return failOnNoTestResults;
+    }
+
+    /**
+     * Setter for optional fail on no test result flag.
+     *
+     * @param failOnNoTestResults If {@code true} then the step fails when no test report
+     *                            files match the pattern.
+     */
+    @DataBoundSetter
+    public void setFailOnNoTestResults(boolean failOnNoTestResults) {
+        this.failOnNoTestResults = failOnNoTestResults;
+    }
+
+    public boolean isSkipUnchanged() {
+        return skipUnchanged;
+    }
+
+    /**
+     * Setter for optional skip unchanged flag.
+     *
+     * @param skipUnchanged If {@code true} then runs are only published for test classes
+     *                      whose outcome changed since they were last published.
+     */
+    @DataBoundSetter
+    public void setSkipUnchanged(boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+    }
+
+    public int getFullRefreshInterval() {
+        return fullRefreshInterval;
+    }
+
+    /**
+     * Setter for optional full refresh interval.
+     *
+     * @param fullRefreshInterval The number of builds after which all test classes are
+     *                            published again when skipping unchanged results (zero for never).
+     */
+    @DataBoundSetter
+    public void setFullRefreshInterval(int fullRefreshInterval) {
+        this.fullRefreshInterval = fullRefreshInterval;
+    }
+
+    public ShardStrategy getShardStrategy() {
+        return shardStrategy != null ? shardStrategy : ShardStrategy.NONE;
+    }
+
+    /**
+     * Setter for optional shard strategy.
+     *
+     * @param shardStrategy How the runs of a build are partitioned into test sets (any but
+     *                      {@link ShardStrategy#SIZE}).
+     */
+    @DataBoundSetter
+    public void setShardStrategy(ShardStrategy shardStrategy) {
+        this.shardStrategy = shardStrategy;
+    }
+
+    public int getShardSize() {
+        return shardSize;
+    }
+
+    /**
+     * Setter for optional shard size.
+     *
+     * @param shardSize The number of test sets when sharding by hash, or the maximum number
+     *                  of runs per test set when sharding by size.
+     */
+    @DataBoundSetter
+    public void setShardSize(int shardSize) {
+        this.shardSize = shardSize;
+    }
+
+    public boolean isDeferredImport() {
+        return deferredImport;
+    }
+
+    /**
+     * Setter for optional deferred import flag.
+     *
+     * @param deferredImport If {@code true} then results are exported to the build directory
+     *                       and imported into Quality Center later, during the import window.
+     */
+    @DataBoundSetter
+    public void setDeferredImport(boolean deferredImport) {
+        this.deferredImport = deferredImport;
+    }
+
+    public static class Execution extends AbstractSynchronousNonBlockingStepExecution<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        @Inject
+        private transient QualityCenterPublishStep step;
+
+        @StepContextParameter
+        private transient Run<?, ?> build;
+
+        @StepContextParameter
+        private transient FilePath workspace;
+
+        @StepContextParameter
+        private transient Launcher launcher;
+
+        @StepContextParameter
+        private transient TaskListener listener;
+
+        @Override
+        protected Void run() throws Exception {
+            PrintStream logger = listener.getLogger();
+
+            if (step.getShardStrategy() == ShardStrategy.SIZE) {
+                throw new AbortException(SIZE_NOT_SUPPORTED);
+            }
+
+            TestResult result = new JUnitParser(false, !step.failOnNoTestResults)
+                    .parseResult(step.testResults, build, workspace, launcher, listener);
+            if (result.getTotalCount() == 0) {
+                if (step.failOnNoTestResults) {
+                    throw new AbortException("No test results found. Results will not be published to Quality Center.");
+                }
+                return null;
+            }
+
+            Computer computer = workspace.toComputer();
+            new ResultPublisher(step.domain, step.project, step.planFolder, step.labFolder)
+                    .userDefinedFields(step.userDefinedFields)
+                    .runFields(step.runFields, step.runStepFields)
+                    .skipUnchanged(step.skipUnchanged, step.fullRefreshInterval)
+                    .deferred(step.deferredImport)
+                    .shards(step.shardStrategy, step.shardSize)
+                    .attachments(workspace, step.attachments)
+                    .publish(getIntegrationDescriptor(), build, result,
+                            computer != null ? computer.getHostName() : null, logger);
+            return null;
+        }
+
+    }
+
+    private static QualityCenterIntegrationDescriptor getIntegrationDescriptor() {
+        return Jenkins.getActiveInstance().getDescriptorByType(QualityCenterIntegrationDescriptor.class);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends AbstractStepDescriptorImpl {
+
+        public DescriptorImpl() {
+            super(Execution.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "qcPublish";
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String getDisplayName() {
+            return "Publish test results to HP Quality Center";
+        }
+
+        public ListBoxModel doFillDomainItems() {
+            return getIntegrationDescriptor().doFillDomainItems();
+        }
+
+        public ListBoxModel doFillProjectItems(@QueryParameter("domain") String domain) {
+            return getIntegrationDescriptor().doFillProjectItems(domain);
+        }
+
+        public FormValidation doCheckPlanFolder(@QueryParameter("planFolder") final String folder,
+                                                @QueryParameter("domain") final String domain, @QueryParameter("project") final String project) {
+            return getIntegrationDescriptor().doCheckPlanFolder(folder, domain, project);
+        }
+
+        public FormValidation doCheckLabFolder(@QueryParameter("labFolder") final String folder,
+                                               @QueryParameter("domain") final String domain, @QueryParameter("project") final String project) {
+            return getIntegrationDescriptor().doCheckLabFolder(folder, domain, project);
+        }
+
+        public FormValidation doCheckUserDefinedFields(
+                @QueryParameter("userDefinedFields") final String userDefinedFields) {
+            return getIntegrationDescriptor().doCheckUserDefinedFields(userDefinedFields);
+        }
+
+        public FormValidation doCheckRunFields(@QueryParameter final String value) {
+            return getIntegrationDescriptor().doCheckRunFields(value);
+        }
+
+        public FormValidation doCheckRunStepFields(@QueryParameter final String value) {
+            return getIntegrationDescriptor().doCheckRunStepFields(value);
+        }
+
+        public FormValidation doCheckFullRefreshInterval(@QueryParameter final String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckShardStrategy(@QueryParameter final String value) {
+            if (ShardStrategy.SIZE.name().equals(value)) {
+                return FormValidation.error(SIZE_NOT_SUPPORTED);
+            }
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckShardSize(@QueryParameter final String value,
+                                               @QueryParameter final String shardStrategy) {
+            return getIntegrationDescriptor().doCheckShardSize(value, shardStrategy);
+        }
+
+    }
+
+}
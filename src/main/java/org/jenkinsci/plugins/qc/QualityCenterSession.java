@@ -0,0 +1,347 @@
+package org.jenkinsci.plugins.qc;
+
+import hudson.AbortException;
+import org.jenkinsci.plugins.qc.QualityCenterIntegrationRecorder.QualityCenterIntegrationDescriptor;
+import org.jenkinsci.plugins.qc.client.Entity;
+import org.jenkinsci.plugins.qc.client.Options;
+import org.jenkinsci.plugins.qc.client.QualityCenter;
+import org.jenkinsci.plugins.qc.client.Query;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An authenticated Quality Center session shared by everything publishing to
+ * the same server with the same account, such as concurrent pipeline steps.
+ * <p>
+ * Besides the client, a session caches resolved folders and indexes of the
+ * entities that have been looked up or created through it. The caches are
+ * bounded and their entries expire after {@link #CACHE_TTL} milliseconds, so
+ * that entities deleted or moved in Quality Center are looked up again; they
+ * are also dropped as a whole when creating an entity fails, as the failure
+ * may be caused by a stale entry. Indexes that are no longer needed, such as
+ * those of a completed test set, should be {@link #drop(Index) dropped} right
+ * away. Sessions are reference counted: the session is logged out and its
+ * caches dropped when the last holder releases it.
+ */
+final class QualityCenterSession {
+
+    private static final Logger LOGGER = Logger.getLogger(QualityCenterSession.class.getName());
+
+    static final long CACHE_TTL = TimeUnit.MINUTES.toMillis(10);
+    private static final int MAX_FOLDERS = 256;
+    private static final int MAX_INDEXES = 64;
+
+    private static final Map<String, QualityCenterSession> SESSIONS = new HashMap<String, QualityCenterSession>();
+
+    private final String key;
+    private final String url;
+    private final String username;
+    private final QualityCenter qc;
+    private final Cache<Entity> folders = new Cache<Entity>(MAX_FOLDERS);
+    private final Cache<Index> indexes = new Cache<Index>(MAX_INDEXES);
+    private int references;
+    private volatile boolean authenticated;
+
+    private QualityCenterSession(String key, String url, String username, Options options) {
+        this.key = key;
+        this.url = url;
+        this.username = username;
+        this.qc = QualityCenter.create(url, options);
+    }
+
+    /**
+     * Acquire the shared session for the configured server and account, logging
+     * in if required. Every acquired session must be {@link #release() released}.
+     *
+     * @throws AbortException if authentication fails.
+     */
+    static QualityCenterSession acquire(QualityCenterIntegrationDescriptor descriptor) throws IOException {
+        String url = descriptor.getUrl();
+        String username = descriptor.getUsername();
+        String password = descriptor.getPassword();
+        String key = url + '\n' + username;
+        QualityCenterSession session;
+        synchronized (SESSIONS) {
+            session = SESSIONS.get(key);
+            if (session == null) {
+                session = new QualityCenterSession(key, url, username, descriptor.getClientOptions());
+                SESSIONS.put(key, session);
+            }
+            session.references++;
+        }
+
+        boolean authenticated = false;
+        try {
+            session.authenticate(password);
+            authenticated = true;
+        } finally {
+            if (!authenticated) {
+                session.release();
+            }
+        }
+        return session;
+    }
+
+    private synchronized void authenticate(String password) throws AbortException {
+        if (authenticated && qc.isAuthenticated()) {
+            return;
+        }
+        authenticated = qc.login(username, password);
+        if (!authenticated) {
+            throw new AbortException("Authentication failed!");
+        }
+    }
+
+    /**
+     * Release the session, logging out once it is no longer held by anyone.
+     */
+    void release() {
+        synchronized (SESSIONS) {
+            if (--references > 0) {
+                return;
+            }
+            SESSIONS.remove(key);
+        }
+
+        if (authenticated) {
+            try {
+                qc.logout();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to log out of Quality Center: " + url, e);
+            }
+        }
+    }
+
+    QualityCenter getClient() {
+        return qc;
+    }
+
+    String getUrl() {
+        return url;
+    }
+
+    String getUsername() {
+        return username;
+    }
+
+    /**
+     * Resolve a forward slash separated folder path.
+     *
+     * @return the folder entity or {@code null} if it does not exist.
+     */
+    Entity folder(final String domain, final String project, final String resource, final String path)
+            throws IOException, InterruptedException {
+        String folderKey = EntityCoordinator.key(url, domain, project, resource, path);
+        Entity folder = folders.get(folderKey);
+        if (folder == null) {
+            folder = EntityCoordinator.INSTANCE.coalesce(folderKey, new Callable<Entity>() {
+                public Entity call() {
+                    return QualityCenterIntegrationRecorder.resolveEntityPath(
+                            qc.query(domain, project).resource(resource), path.split("/"));
+                }
+            });
+            if (folder != null) {
+                folders.put(folderKey, folder);
+            }
+        }
+        return folder;
+    }
+
+    /**
+     * @return an initially empty index, shared by all users of this session,
+     * that is populated as entities are found or created.
+     */
+    Index index(String... parts) {
+        String indexKey = EntityCoordinator.key(url) + EntityCoordinator.key(parts);
+        return indexes.putIfAbsent(indexKey, new Index(indexKey));
+    }
+
+    /**
+     * @return an index, shared by all users of this session, of the entities
+     * matching the query by the given field. The query is executed once.
+     */
+    Index index(final Query query, final String field, String... parts) throws IOException, InterruptedException {
+        final String indexKey = EntityCoordinator.key(url) + EntityCoordinator.key(parts);
+        Index index = indexes.get(indexKey);
+        if (index == null) {
+            index = EntityCoordinator.INSTANCE.coalesce(indexKey, new Callable<Index>() {
+                public Index call() {
+                    Index existing = indexes.get(indexKey);
+                    if (existing != null) {
+                        return existing;
+                    }
+                    Index created = new Index(indexKey);
+                    for (Entity e : query.execute()) {
+                        created.entities.put(e.get(field), e);
+                    }
+                    indexes.put(indexKey, created);
+                    return created;
+                }
+            });
+        }
+        return index;
+    }
+
+    /**
+     * Find the entity in the index, otherwise look it up in Quality Center and
+     * add it to the index.
+     *
+     * @return the entity, or {@code null} if it does not exist (yet).
+     */
+    Entity find(Index index, String name, Query query) {
+        Entity existing = index.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        List<Entity> found = query.execute();
+        if (found.isEmpty()) {
+            return null;
+        }
+        existing = index.entities.putIfAbsent(name, found.get(0));
+        return existing != null ? existing : found.get(0);
+    }
+
+    /**
+     * Find the entity in the index, otherwise look it up in Quality Center or
+     * create it (coordinated with all other builds on this controller).
+     * <p>
+     * If creating the entity fails, the caches are invalidated (the entity may
+     * have been missing from a stale index, or refer to a stale entity) and the
+     * entity is looked up once more before giving up.
+     *
+     * @return the existing entity, or the given entity once created.
+     */
+    Entity findOrCreate(Index index, String name, Query query, Entity entity) throws IOException,
+            InterruptedException {
+        Entity existing = index.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        Entity found;
+        try {
+            found = EntityCoordinator.INSTANCE.findOrCreate(index.key + EntityCoordinator.key(name), query, entity);
+        } catch (RuntimeException e) {
+            invalidate();
+            List<Entity> retry = query.execute();
+            if (retry.isEmpty()) {
+                throw e;
+            }
+            found = retry.get(0);
+        }
+        index.entities.put(name, found);
+        return found;
+    }
+
+    /**
+     * Drop an index that is no longer needed.
+     */
+    void drop(Index index) {
+        indexes.remove(index.key);
+    }
+
+    /**
+     * Drop all cached folders and indexes, e.g. after a failure that may have
+     * been caused by a stale entry.
+     */
+    void invalidate() {
+        LOGGER.log(Level.FINE, "Invalidating cached Quality Center entities: {0}", url);
+        folders.clear();
+        indexes.clear();
+    }
+
+    /**
+     * A thread safe, bounded cache whose least recently used entries are
+     * evicted and whose entries expire {@link #CACHE_TTL} milliseconds after
+     * they were added.
+     */
+    private static final class Cache<V> {
+
+        private final Map<String, Expiring<V>> entries;
+
+        Cache(final int capacity) {
+            entries = new LinkedHashMap<String, Expiring<V>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Expiring<V>> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        synchronized V get(String key) {
+            Expiring<V> entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (System.currentTimeMillis() - entry.added > CACHE_TTL) {
+                entries.remove(key);
+                return null;
+            }
+            return entry.value;
+        }
+
+        synchronized void put(String key, V value) {
+            entries.put(key, new Expiring<V>(value));
+        }
+
+        /**
+         * @return the cached value, or the given value once added.
+         */
+        synchronized V putIfAbsent(String key, V value) {
+            V existing = get(key);
+            if (existing != null) {
+                return existing;
+            }
+            put(key, value);
+            return value;
+        }
+
+        synchronized void remove(String key) {
+            entries.remove(key);
+        }
+
+        synchronized void clear() {
+            entries.clear();
+        }
+
+    }
+
+    private static final class Expiring<V> {
+
+        private final V value;
+        private final long added = System.currentTimeMillis();
+
+        Expiring(V value) {
+            this.value = value;
+        }
+
+    }
+
+    /**
+     * A thread safe index of entities by name (or another identifying field).
+     */
+    static final class Index {
+
+        private final String key;
+        private final ConcurrentMap<String, Entity> entities = new ConcurrentHashMap<String, Entity>();
+
+        private Index(String key) {
+            this.key = key;
+        }
+
+        Entity get(String name) {
+            return entities.get(name);
+        }
+
+    }
+
+}
@@ -0,0 +1,114 @@
+package org.jenkinsci.plugins.qc;
+
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.tasks.junit.CaseResult;
+import hudson.tasks.junit.ClassResult;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact per-job record of the outcome of each test class last published to
+ * Quality Center, used to only publish runs for classes whose outcome changed.
+ * <p>
+ * Each class is stored as a hash of its name, whether it passed and the outcome
+ * (passed, failed or skipped) of each of its test cases. A full refresh
+ * (publishing every class) is forced every {@code fullRefreshInterval} builds.
+ */
+final class ResultDigest {
+
+    private static final String FILE_NAME = "qc-digest.xml";
+
+    private final Map<String, String> classes = new HashMap<String, String>();
+    private int lastFullRefresh;
+
+    /**
+     * A full refresh is due until one has been {@link #record(Job, PublishPlan) recorded}, so a
+     * refresh that failed to publish (or was never imported) is repeated by the next build.
+     *
+     * @param build               The build publishing the results.
+     * @param fullRefreshInterval The number of builds between full refreshes (zero for never).
+     * @return whether all classes of the build need to be published.
+     */
+    static boolean isFullRefreshDue(Run<?, ?> build, int fullRefreshInterval) throws IOException {
+        synchronized (ResultDigest.class) {
+            ResultDigest digest = load(build.getParent());
+            int number = build.getNumber();
+            return digest.lastFullRefresh == 0 || number == digest.lastFullRefresh
+                    || (fullRefreshInterval > 0 && number - digest.lastFullRefresh >= fullRefreshInterval);
+        }
+    }
+
+    /**
+     * Select the classes whose outcome differs from the last published one.
+     *
+     * @param build   The build publishing the results.
+     * @param results The class results of the build.
+     * @return the class results that need to be published.
+     */
+    static List<ClassResult> changed(Run<?, ?> build, List<ClassResult> results) throws IOException {
+        synchronized (ResultDigest.class) {
+            ResultDigest digest = load(build.getParent());
+            List<ClassResult> changed = new ArrayList<ClassResult>();
+            for (ClassResult result : results) {
+                if (!hash(result).equals(digest.classes.get(result.getFullName()))) {
+                    changed.add(result);
+                }
+            }
+            return changed;
+        }
+    }
+
+    /**
+     * Record the outcome of the classes of a successfully published plan (see
+     * {@link PublishPlan#digests}) and, if it was a full refresh, its build.
+     */
+    static void record(Job<?, ?> job, PublishPlan plan) throws IOException {
+        if (plan.digests.isEmpty() && !plan.fullRefresh) {
+            return;
+        }
+        synchronized (ResultDigest.class) {
+            ResultDigest digest = load(job);
+            digest.classes.putAll(plan.digests);
+            if (plan.fullRefresh) {
+                digest.lastFullRefresh = Math.max(digest.lastFullRefresh, plan.buildNumber);
+            }
+            save(job, digest);
+        }
+    }
+
+    /**
+     * @return the hash of the outcome of the class.
+     */
+    static String hash(ClassResult result) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(result.getFullName()).append('\n').append(result.isPassed());
+        for (CaseResult caseResult : result.getChildren()) {
+            // Not getStatus(), which is relative to the previous build (and loads its results)
+            builder.append('\n').append(caseResult.getName()).append('=')
+                    .append(caseResult.isSkipped() ? "skipped" : caseResult.isPassed() ? "passed" : "failed");
+        }
+        return Util.getDigestOf(builder.toString());
+    }
+
+    private static XmlFile file(Job<?, ?> job) {
+        return new XmlFile(new File(job.getRootDir(), FILE_NAME));
+    }
+
+    private static ResultDigest load(Job<?, ?> job) throws IOException {
+        XmlFile file = file(job);
+        return file.exists() ? (ResultDigest) file.read() : new ResultDigest();
+    }
+
+    private static void save(Job<?, ?> job, ResultDigest digest) throws IOException {
+        file(job).write(digest);
+    }
+
+}
@@ -0,0 +1,494 @@
+package org.jenkinsci.plugins.qc;
+
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Run;
+import hudson.tasks.junit.ClassResult;
+import hudson.tasks.junit.PackageResult;
+import hudson.tasks.junit.TestResult;
+import org.jenkinsci.plugins.qc.QualityCenterIntegrationRecorder.QualityCenterIntegrationDescriptor;
+import org.jenkinsci.plugins.qc.client.Entity;
+import org.jenkinsci.plugins.qc.client.EntityTemplate;
+import org.jenkinsci.plugins.qc.client.QualityCenter;
+import org.jenkinsci.plugins.qc.client.Query;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Publishes a set of unit test results to Quality Center: test plans are
+ * created for any new test classes, a test set is created for the build and a
+ * run (with a run step per test case) is added for each test class.
+ * <p>
+ * The results are first turned into a {@link PublishPlan}, which is either
+ * published straight away or exported for the {@link DeferredImporter}.
+ * Publishers sharing a {@link QualityCenterSession} also share its folder and
+ * entity caches, so concurrent publishing for the same build only looks up and
+ * creates each entity once.
+ */
+final class ResultPublisher {
+
+    private static final int SHARD_THREADS = 4;
+    private static final Pattern FIELDS = Pattern.compile("([^=]+)=([^=]+)(?:,|$)");
+
+    private final String domain;
+    private final String project;
+    private final String planFolder;
+    private final String labFolder;
+    private String userDefinedFields;
+    private String runFields;
+    private String runStepFields;
+    private boolean skipUnchanged;
+    private int fullRefreshInterval;
+    private boolean deferred;
+    private ShardStrategy shardStrategy = ShardStrategy.NONE;
+    private int shardSize;
+    private FilePath workspace;
+    private String attachments;
+
+    ResultPublisher(String domain, String project, String planFolder, String labFolder) {
+        this.domain = domain;
+        this.project = project;
+        this.planFolder = planFolder;
+        this.labFolder = labFolder;
+    }
+
+    ResultPublisher userDefinedFields(String userDefinedFields) {
+        this.userDefinedFields = userDefinedFields;
+        return this;
+    }
+
+    /**
+     * @param runFields     Additional fields (e.g. {@code user-01=value01,user-02=value02})
+     *                      of every run.
+     * @param runStepFields Additional fields of every run step.
+     */
+    ResultPublisher runFields(String runFields, String runStepFields) {
+        this.runFields = runFields;
+        this.runStepFields = runStepFields;
+        return this;
+    }
+
+    /**
+     * Only publish runs for test classes whose outcome changed since they were
+     * last published by the job (see {@link ResultDigest}).
+     *
+     * @param fullRefreshInterval The number of builds between full refreshes (zero for never).
+     */
+    ResultPublisher skipUnchanged(boolean skipUnchanged, int fullRefreshInterval) {
+        this.skipUnchanged = skipUnchanged;
+        this.fullRefreshInterval = fullRefreshInterval;
+        return this;
+    }
+
+    /**
+     * Export the results to the build directory for a later bulk import rather
+     * than publishing them straight away.
+     */
+    ResultPublisher deferred(boolean deferred) {
+        this.deferred = deferred;
+        return this;
+    }
+
+    /**
+     * Partition the runs into several test sets (see {@link ShardStrategy}).
+     *
+     * @param shardSize The number of test sets ({@link ShardStrategy#HASH}) or the maximum
+     *                  number of runs per test set ({@link ShardStrategy#SIZE}).
+     */
+    ResultPublisher shards(ShardStrategy shardStrategy, int shardSize) {
+        this.shardStrategy = shardStrategy != null ? shardStrategy : ShardStrategy.NONE;
+        this.shardSize = shardSize;
+        return this;
+    }
+
+    /**
+     * Attach files from the workspace to the runs (see {@link AttachmentUploader}).
+     *
+     * @param attachments An Ant style pattern of the files to attach to each run, in which
+     *                    {@value AttachmentUploader#CLASS_TOKEN} is replaced with the name
+     *                    of the test class.
+     */
+    ResultPublisher attachments(FilePath workspace, String attachments) {
+        this.workspace = workspace;
+        this.attachments = attachments;
+        return this;
+    }
+
+    /**
+     * @param descriptor The global Quality Center configuration.
+     * @param build      The build the results belong to (which names the test set).
+     * @param result     The results to publish.
+     * @param host       The name of the host the tests were run on.
+     * @param logger     The build log.
+     */
+    void publish(QualityCenterIntegrationDescriptor descriptor, Run<?, ?> build, TestResult result, String host,
+                 PrintStream logger) throws IOException, InterruptedException {
+        List<ClassResult> classes = new ArrayList<ClassResult>();
+        for (PackageResult packageResult : result.getChildren()) {
+            classes.addAll(packageResult.getChildren());
+        }
+
+        boolean fullRefresh = false;
+        if (skipUnchanged) {
+            int total = classes.size();
+            fullRefresh = ResultDigest.isFullRefreshDue(build, fullRefreshInterval);
+            if (!fullRefresh) {
+                classes = ResultDigest.changed(build, classes);
+            }
+            logger.println("Publishing " + classes.size() + " of " + total + " test classes (skipping unchanged)");
+            if (classes.isEmpty()) {
+                return;
+            }
+        }
+
+        List<PublishPlan.TestClass> testClasses = new ArrayList<PublishPlan.TestClass>();
+        Map<String, String> digests = new LinkedHashMap<String, String>();
+        for (ClassResult classResult : classes) {
+            testClasses.add(PublishPlan.TestClass.of(classResult));
+            if (skipUnchanged) {
+                digests.put(classResult.getFullName(), ResultDigest.hash(classResult));
+            }
+        }
+        PublishPlan plan = new PublishPlan(domain, project, planFolder, labFolder, userDefinedFields, runFields,
+                runStepFields, build.getDisplayName(), shardStrategy, shardSize, host, testClasses,
+                build.getParent().getFullName(), build.getNumber(), fullRefresh, digests);
+
+        boolean attach = workspace != null && attachments != null && attachments.trim().length() > 0;
+        if (deferred) {
+            // The digest is recorded by the importer, once the results are actually published
+            DeferredImporter.export(build, plan, logger);
+            if (attach) {
+                logger.println("Attachments are not uploaded for deferred imports");
+            }
+        } else {
+            logger.println("Synchronizing test results with ALM instance: " + descriptor.getUrl());
+
+            // Authenticate (or reuse an authenticated) Quality Center session
+            QualityCenterSession session = QualityCenterSession.acquire(descriptor);
+            try {
+                Map<String, Entity> runs = publish(session, plan, null, logger);
+                // The runs are published, whatever happens to their attachments
+                ResultDigest.record(build.getParent(), plan);
+                if (attach) {
+                    new AttachmentUploader(session, domain, project, workspace, attachments.trim(),
+                            descriptor.getMaxAttachmentSize() * 1024L * 1024L, logger).upload(runs);
+                }
+            } finally {
+                session.release();
+            }
+        }
+    }
+
+    /**
+     * Publish the plan using the given session.
+     * <p>
+     * The constant fields of the tests, test instances, runs and run steps are
+     * compiled into {@link EntityTemplate}s once per plan, so each entity only
+     * adds its own variable fields. The runs are partitioned into test sets by
+     * the {@link ShardStrategy} of the plan and the test sets are published in
+     * parallel, each with its own index of test instances.
+     * <p>
+     * If publishing fails, the caches of the session are invalidated, as the
+     * failure may have been caused by a stale entry.
+     *
+     * @param checkpoint The test classes whose runs were already published by an earlier,
+     *                   failed attempt (or {@code null}), which is updated as runs are published.
+     * @return the runs that were added, by the name of their test class.
+     */
+    static Map<String, Entity> publish(QualityCenterSession session, PublishPlan plan, Checkpoint checkpoint,
+                                       PrintStream logger) throws IOException, InterruptedException {
+        try {
+            return publishPlan(session, plan, checkpoint, logger);
+        } catch (RuntimeException e) {
+            session.invalidate();
+            throw e;
+        }
+    }
+
+    private static Map<String, Entity> publishPlan(final QualityCenterSession session, final PublishPlan plan,
+                                                   final Checkpoint checkpoint, final PrintStream logger)
+            throws IOException, InterruptedException {
+        QualityCenter qc = session.getClient();
+        String domain = plan.domain;
+        String project = plan.project;
+
+        Entity planFolderEntity = session.folder(domain, project, "test-folders", plan.planFolder);
+        Entity labFolderEntity = session.folder(domain, project, "test-set-folders", plan.labFolder);
+
+        if (planFolderEntity == null) {
+            throw new AbortException("Plan folder '" + plan.planFolder + "' does not exists.");
+        }
+
+        if (labFolderEntity == null) {
+            throw new AbortException("Lab folder '" + plan.labFolder + "' does not exists.");
+        }
+
+        // Map out all the tests by name
+        String planFolderId = planFolderEntity.get("id");
+        final QualityCenterSession.Index tests = tests(session, domain, project, planFolderId);
+
+        EntityTemplate testTemplate = new EntityTemplate("test")
+                .field("parent-id", planFolderId)
+                .field("owner", session.getUsername())
+                .field("subtype-id", "VAPI-XP-TEST");
+        addFields(testTemplate, plan.userDefinedFields);
+        testTemplate.field("status", "Ready");
+
+        for (PublishPlan.TestClass testClass : plan.classes) {
+            if (tests.get(testClass.name) == null) {
+                Entity e = qc.create(domain, project, "tests", testTemplate);
+                e.add("name", testClass.name);
+
+                // Another build may be creating (or may just have created) the same test
+                Entity test = session.findOrCreate(tests, testClass.name,
+                        qc.query(domain, project).resource("tests").fields("id", "name")
+                                .filter("parent-id[={0}];name[\"{1}\"]", planFolderId, testClass.name), e);
+                logger.println((test == e ? "Created test: " : "Test exists: ") + testClass.name);
+            } else {
+                logger.println("Test exists: " + testClass.name);
+            }
+        }
+
+        // Publish each test set (shard) in parallel
+        final String labFolderId = labFolderEntity.get("id");
+        Map<String, List<PublishPlan.TestClass>> sets = plan.shardStrategy.partition(plan.setName, plan.classes,
+                plan.shardSize);
+        if (sets.size() == 1) {
+            Map.Entry<String, List<PublishPlan.TestClass>> set = sets.entrySet().iterator().next();
+            return publishSet(session, plan, tests, labFolderId, set.getKey(), set.getValue(), checkpoint, logger);
+        }
+
+        List<Callable<Map<String, Entity>>> shards = new ArrayList<Callable<Map<String, Entity>>>();
+        for (final Map.Entry<String, List<PublishPlan.TestClass>> set : sets.entrySet()) {
+            shards.add(new Callable<Map<String, Entity>>() {
+                public Map<String, Entity> call() throws IOException, InterruptedException {
+                    return publishSet(session, plan, tests, labFolderId, set.getKey(), set.getValue(), checkpoint,
+                            logger);
+                }
+            });
+        }
+
+        logger.println("Publishing " + plan.classes.size() + " test runs to " + shards.size() + " test sets");
+        Map<String, Entity> runs = new LinkedHashMap<String, Entity>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(SHARD_THREADS, shards.size()));
+        try {
+            for (Future<Map<String, Entity>> shard : executor.invokeAll(shards)) {
+                runs.putAll(EntityCoordinator.await(shard));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return runs;
+    }
+
+    /**
+     * Publish the runs of the given test classes to a single test set, creating
+     * the test set and any missing test instances.
+     *
+     * @return the runs that were added, by the name of their test class.
+     */
+    private static Map<String, Entity> publishSet(QualityCenterSession session, PublishPlan plan,
+                                                  QualityCenterSession.Index tests, String labFolderId,
+                                                  String setName, List<PublishPlan.TestClass> classes,
+                                                  Checkpoint checkpoint, PrintStream logger)
+            throws IOException, InterruptedException {
+        QualityCenter qc = session.getClient();
+        String domain = plan.domain;
+        String project = plan.project;
+
+        // Check if test set exists (create it if it is missing)
+        Entity newSet = qc.create(domain, project, "test-sets");
+        newSet.setType("test-set");
+        newSet.add("subtype-id", "hp.qc.test-set.default");
+        newSet.add("parent-id", labFolderId);
+        newSet.add("name", setName);
+        Entity set = session.findOrCreate(sets(session, domain, project, labFolderId), setName,
+                setQuery(session, domain, project, labFolderId, setName), newSet);
+        logger.println((set == newSet ? "Created test set: " : "Test set exists: ") + setName);
+
+        // Map out all the test instances by test
+        String setId = set.get("id");
+        QualityCenterSession.Index instances = instances(session, domain, project, setId);
+
+        EntityTemplate instanceTemplate = new EntityTemplate("test-instance")
+                .field("subtype-id", "hp.qc.test-instance.VAPI-XP-TEST")
+                .field("cycle-id", setId)
+                .field("test-order", "0");
+
+        // Check if a test instance already exists (create if it is missing)
+        for (PublishPlan.TestClass testClass : classes) {
+            String testId = tests.get(testClass.name).get("id");
+            if (instances.get(testId) == null) {
+                Entity e = qc.create(domain, project, "test-instances", instanceTemplate);
+                e.add("test-id", testId);
+                e.add("test-config-id", testId);
+
+                Entity instance = session.findOrCreate(instances, testId,
+                        qc.query(domain, project).resource("test-instances").fields("id", "test-id")
+                                .filter("cycle-id[{0}];test-id[{1}]", setId, testId), e);
+                logger.println((instance == e ? "Created test instance: " : "Test instance exists: ")
+                        + testClass.name);
+            } else {
+                logger.println("Test instance exists: " + testClass.name);
+            }
+        }
+
+        EntityTemplate runTemplate = new EntityTemplate("run")
+                .field("subtype-id", "hp.qc.run.VAPI-XP-TEST")
+                .field("owner", session.getUsername())
+                .field("state", "Finished")
+                .field("cycle-id", setId)
+                .field("name", plan.setName)
+                .field("host", plan.host != null ? plan.host : "");
+        addFields(runTemplate, plan.runFields);
+
+        EntityTemplate stepTemplate = new EntityTemplate("run-step");
+        addFields(stepTemplate, plan.runStepFields);
+
+        Map<String, Entity> runs = new LinkedHashMap<String, Entity>();
+        for (PublishPlan.TestClass testClass : classes) {
+            if (checkpoint != null && checkpoint.isPublished(testClass.name)) {
+                logger.println("Test run already published: " + testClass.name);
+                continue;
+            }
+            String status = testClass.passed ? "Passed" : "Failed";
+            logger.println("Adding test run: " + testClass.name + " (" + status + ")");
+            Entity i = instances.get(tests.get(testClass.name).get("id"));
+            Entity r = qc.create(domain, project, "runs", runTemplate);
+            r.add("testcycl-id", i.get("id"));
+            r.add("test-id", i.get("test-id"));
+            r.add("duration", Integer.toString(testClass.duration));
+            r.add("status", "Not Completed"); // Must be set 'Not
+            // Completed' initially
+            r.post();
+
+            // Updated the run to pass/fail (will trigger test instance
+            // to be updated also)
+            r.set("status", status);
+            r.put();
+            runs.put(testClass.name, r);
+
+            // Add a run step for each test case
+            for (PublishPlan.TestCase testCase : testClass.cases) {
+                Entity step = qc.create(domain, project, "runs/" + r.get("id") + "/run-steps", stepTemplate);
+                String stepStatus = testCase.passed ? "Passed" : "Failed";
+                step.add("parent-id", r.get("id"));
+                step.add("name", testCase.name);
+                step.add("status", stepStatus);
+                if (testCase.actual != null) {
+                    step.add("actual", testCase.actual);
+                }
+                logger.println("Adding test run step: " + testCase.name + " (" + stepStatus + ")");
+                step.post();
+            }
+
+            if (checkpoint != null) {
+                checkpoint.published(testClass.name);
+            }
+
+        }
+
+        // The test set is complete, its index is of no further use
+        session.drop(instances);
+        return runs;
+    }
+
+    /**
+     * Look up everything publishing to the given folders and test set will need
+     * that does not depend on the results: the folders, the tests in the plan
+     * folder and, if the test set already exists, its test instances. The plan
+     * and lab folders are looked up concurrently. The results are cached in the
+     * session for the publishing that follows.
+     *
+     * @param setName The name of the test set, or {@code null} if not known in advance.
+     */
+    static void prefetch(final QualityCenterSession session, final String domain, final String project,
+                         final String planFolder, final String labFolder, final String setName)
+            throws IOException, InterruptedException {
+        Future<Void> plan = Computer.threadPoolForRemoting.submit(new Callable<Void>() {
+            public Void call() throws IOException, InterruptedException {
+                Entity planFolderEntity = session.folder(domain, project, "test-folders", planFolder);
+                if (planFolderEntity != null) {
+                    tests(session, domain, project, planFolderEntity.get("id"));
+                }
+                return null;
+            }
+        });
+
+        Entity labFolderEntity = session.folder(domain, project, "test-set-folders", labFolder);
+        if (labFolderEntity != null && setName != null) {
+            String labFolderId = labFolderEntity.get("id");
+            Entity set = session.find(sets(session, domain, project, labFolderId), setName,
+                    setQuery(session, domain, project, labFolderId, setName));
+            if (set != null) {
+                instances(session, domain, project, set.get("id"));
+            }
+        }
+
+        EntityCoordinator.await(plan);
+    }
+
+    /**
+     * @return the index of the tests in the plan folder by name.
+     */
+    private static QualityCenterSession.Index tests(QualityCenterSession session, String domain, String project,
+                                                    String planFolderId) throws IOException, InterruptedException {
+        return session.index(session.getClient().query(domain, project).resource("tests").fields("id", "name")
+                        .filter("parent-id[={0}]", planFolderId), "name",
+                domain, project, "tests", planFolderId);
+    }
+
+    /**
+     * @return the index of the test sets in the lab folder by name, populated
+     * as test sets are looked up or created.
+     */
+    private static QualityCenterSession.Index sets(QualityCenterSession session, String domain, String project,
+                                                   String labFolderId) {
+        return session.index(domain, project, "test-sets", labFolderId);
+    }
+
+    /**
+     * @return the query for the test set with the given name in the lab folder.
+     */
+    private static Query setQuery(QualityCenterSession session, String domain, String project, String labFolderId,
+                                  String setName) {
+        return session.getClient().query(domain, project).resource("test-sets").fields("id", "name")
+                .filter("parent-id[={0}];name[\"{1}\"]", labFolderId, setName);
+    }
+
+    /**
+     * @return the index of the test instances in the test set by test.
+     */
+    private static QualityCenterSession.Index instances(QualityCenterSession session, String domain, String project,
+                                                        String setId) throws IOException, InterruptedException {
+        return session.index(session.getClient().query(domain, project).resource("test-instances")
+                        .fields("id", "test-id").filter("cycle-id[{0}]", setId), "test-id",
+                domain, project, "test-instances", setId);
+    }
+
+    /**
+     * Add the fields of a comma separated key-value list to a template.
+     */
+    private static void addFields(EntityTemplate template, String fields) {
+        if (fields == null) {
+            return;
+        }
+        Matcher matcher = FIELDS.matcher(fields);
+        while (matcher.find()) {
+            template.field(matcher.group(1), matcher.group(2));
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+package org.jenkinsci.plugins.qc;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.qc.QualityCenterIntegrationRecorder.QualityCenterIntegrationDescriptor;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logs in to Quality Center and prefetches the folders, tests and test
+ * instances of builds that publish their results with the
+ * {@link QualityCenterIntegrationRecorder} as soon as they start, while the
+ * tests are still running.
+ * <p>
+ * The warmed up {@link QualityCenterSession} is held until the build completes,
+ * so the recorder finds it logged in and can start publishing right away. The
+ * prefetched entities are cached in the indexes the recorder reads, and only
+ * for as long as any cached entity (see {@link QualityCenterSession#CACHE_TTL}),
+ * so builds whose tests run longer simply look them up again. Lookups still
+ * in flight when the recorder runs are shared rather than repeated. Failures
+ * are only logged, the recorder simply looks everything up itself.
+ */
+@Extension
+public class SessionWarmUp extends RunListener<AbstractBuild<?, ?>> {
+
+    private static final Logger LOGGER = Logger.getLogger(SessionWarmUp.class.getName());
+
+    private final ConcurrentMap<String, Future<QualityCenterSession>> sessions =
+            new ConcurrentHashMap<String, Future<QualityCenterSession>>();
+
+    @Override
+    public void onStarted(final AbstractBuild<?, ?> build, TaskListener listener) {
+        final QualityCenterIntegrationRecorder recorder = build.getProject().getPublishersList()
+                .get(QualityCenterIntegrationRecorder.class);
+        if (recorder == null || recorder.isDeferredImport()) {
+            return;
+        }
+        final QualityCenterIntegrationDescriptor descriptor = Jenkins.getActiveInstance()
+                .getDescriptorByType(QualityCenterIntegrationDescriptor.class);
+        if (descriptor == null || descriptor.getUrl() == null || !descriptor.isWarmUp()) {
+            return;
+        }
+
+        // The test set name is only known in advance for a single test set per build
+        final String setName = recorder.getShardStrategy() == ShardStrategy.NONE ? build.getDisplayName() : null;
+        sessions.put(build.getExternalizableId(), Computer.threadPoolForRemoting.submit(
+                new Callable<QualityCenterSession>() {
+                    public QualityCenterSession call() throws IOException {
+                        QualityCenterSession session = QualityCenterSession.acquire(descriptor);
+                        try {
+                            ResultPublisher.prefetch(session, recorder.getDomain(), recorder.getProject(),
+                                    recorder.getPlanFolder(), recorder.getLabFolder(), setName);
+                        } catch (IOException | RuntimeException e) {
+                            LOGGER.log(Level.INFO, "Failed to prefetch Quality Center entities for " + build, e);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return session;
+                    }
+                }));
+        listener.getLogger().println("Warming up Quality Center session: " + descriptor.getUrl());
+    }
+
+    @Override
+    public void onCompleted(final AbstractBuild<?, ?> build, TaskListener listener) {
+        final Future<QualityCenterSession> session = sessions.remove(build.getExternalizableId());
+        if (session == null) {
+            return;
+        }
+
+        // Release the session once the warm up is done (normally long ago)
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            public void run() {
+                try {
+                    EntityCoordinator.await(session).release();
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.log(Level.INFO, "Failed to warm up Quality Center session for " + build, e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+}
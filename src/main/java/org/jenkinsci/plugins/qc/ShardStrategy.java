@@ -0,0 +1,124 @@
+package org.jenkinsci.plugins.qc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * How the runs of a build are partitioned into test sets.
+ * <p>
+ * Every shard becomes a test set named after the build and the shard (e.g.
+ * {@code #42 [com.example.dao]}), which keeps test sets, and the scan of their
+ * test instances, small for builds with very many test classes.
+ */
+public enum ShardStrategy {
+
+    /**
+     * A single test set for the whole build.
+     */
+    NONE("Single test set") {
+        @Override
+        String shard(String className, int index, int size) {
+            return null;
+        }
+    },
+
+    /**
+     * A test set per Java package.
+     */
+    PACKAGE("Test set per package") {
+        @Override
+        String shard(String className, int index, int size) {
+            int dot = className.lastIndexOf('.');
+            return dot > 0 ? className.substring(0, dot) : "(root)";
+        }
+    },
+
+    /**
+     * A fixed number of test sets, assigning each test class to one by the
+     * hash of its name (so a class always lands in the same set).
+     */
+    HASH("Fixed number of test sets (by hash)") {
+        @Override
+        String shard(String className, int index, int size) {
+            return Integer.toString((className.hashCode() & Integer.MAX_VALUE) % size + 1);
+        }
+    },
+
+    /**
+     * Test sets of at most a given number of runs, assigning the test classes
+     * in order of their names.
+     * <p>
+     * The assignment depends on all classes published together, so a class may
+     * move to another set when others are added or skipped as unchanged, and
+     * separate publications within a build would overfill the same sets. It is
+     * therefore not supported by the {@link QualityCenterPublishStep}.
+     */
+    SIZE("Test sets of limited size") {
+        @Override
+        String shard(String className, int index, int size) {
+            return Integer.toString(index / size + 1);
+        }
+    };
+
+    private final String displayName;
+
+    ShardStrategy(String displayName) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    /**
+     * @param className The name of the test class.
+     * @param index     The position of the test class in order of names.
+     * @param size      The number of shards ({@link #HASH}) or maximum shard size ({@link #SIZE}).
+     * @return the name of the shard, or {@code null} if not sharding.
+     */
+    abstract String shard(String className, int index, int size);
+
+    /**
+     * Partition the test classes of a plan into test sets.
+     *
+     * @param setName The name of the test set of the build.
+     * @param size    The number of shards ({@link #HASH}) or maximum shard size ({@link #SIZE}).
+     * @return the test classes by test set name, in order of the set names.
+     */
+    Map<String, List<PublishPlan.TestClass>> partition(String setName, List<PublishPlan.TestClass> classes,
+                                                       int size) {
+        if (this == NONE || (size < 1 && (this == HASH || this == SIZE))) {
+            return Collections.singletonMap(setName, classes);
+        }
+
+        List<PublishPlan.TestClass> sorted = new ArrayList<PublishPlan.TestClass>(classes);
+        Collections.sort(sorted, new Comparator<PublishPlan.TestClass>() {
+            public int compare(PublishPlan.TestClass a, PublishPlan.TestClass b) {
+                return a.name.compareTo(b.name);
+            }
+        });
+
+        Map<String, List<PublishPlan.TestClass>> shards = new TreeMap<String, List<PublishPlan.TestClass>>();
+        for (int i = 0; i < sorted.size(); i++) {
+            String shard = shard(sorted.get(i).name, i, size);
+            List<PublishPlan.TestClass> shardClasses = shards.get(shard);
+            if (shardClasses == null) {
+                shardClasses = new ArrayList<PublishPlan.TestClass>();
+                shards.put(shard, shardClasses);
+            }
+            shardClasses.add(sorted.get(i));
+        }
+
+        Map<String, List<PublishPlan.TestClass>> sets = new LinkedHashMap<String, List<PublishPlan.TestClass>>();
+        for (Map.Entry<String, List<PublishPlan.TestClass>> shard : shards.entrySet()) {
+            sets.put(setName + " [" + shard.getKey() + "]", shard.getValue());
+        }
+        return sets;
+    }
+
+}
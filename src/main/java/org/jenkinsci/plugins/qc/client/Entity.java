@@ -5,16 +5,26 @@ import static javax.ws.rs.core.MediaType.APPLICATION_OCTET_STREAM_TYPE;
 import static javax.ws.rs.core.MediaType.APPLICATION_XML_TYPE;
 
 import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.Response;
+
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.RequestEntityProcessing;
 
 public class Entity {
 
 	private final WebTarget target;
+	private final Throttle throttle;
 	private Schema.Entity entity;
+	private final Set<String> modified = new LinkedHashSet<String>();
 
-	Entity(WebTarget target, Schema.Entity entity) {
+	Entity(WebTarget target, Throttle throttle, Schema.Entity entity) {
 		this.target = target;
+		this.throttle = throttle;
 		this.entity = entity;
 	}
 	
@@ -32,6 +42,7 @@ public class Entity {
 
 	public void set(String field, String value) {
 		entity.field(field).value = value;
+		modified.add(field);
 	}
 
 	public void add(String name, String value) {
@@ -39,13 +50,40 @@ public class Entity {
 	}
 
 	public void post() {
-		this.entity = target.request(APPLICATION_XML_TYPE).post(entity(entity, APPLICATION_XML_TYPE),
-				Schema.Entity.class);
+		Throttle.Permit permit = throttle.acquire(Throttle.Operation.CREATE);
+		try {
+			this.entity = target.request(APPLICATION_XML_TYPE).post(entity(entity, APPLICATION_XML_TYPE),
+					Schema.Entity.class);
+			permit.complete();
+		} catch (RuntimeException e) {
+			throw permit.fail(e);
+		} finally {
+			permit.release();
+		}
 	}
 
+	/**
+	 * Update the entity. Only the fields changed with {@link #set(String, String)}
+	 * are sent.
+	 */
 	public void put() {
-		target.path(entity.field("id").value).request(APPLICATION_XML_TYPE).put(entity(entity, APPLICATION_XML_TYPE),
-				Schema.Entity.class);
+		Schema.Entity changes = new Schema.Entity();
+		changes.type = entity.type;
+		for (String field : modified) {
+			changes.add(field, entity.field(field).value);
+		}
+
+		Throttle.Permit permit = throttle.acquire(Throttle.Operation.UPDATE);
+		try {
+			target.path(entity.field("id").value).request(APPLICATION_XML_TYPE)
+					.put(entity(changes, APPLICATION_XML_TYPE), Schema.Entity.class);
+			permit.complete();
+		} catch (RuntimeException e) {
+			throw permit.fail(e);
+		} finally {
+			permit.release();
+		}
+		modified.clear();
 	}
 
 	public void delete() {
@@ -53,13 +91,40 @@ public class Entity {
 	}
 
 	public void get() {
-		target.path(entity.field("id").value).request(APPLICATION_XML_TYPE).put(entity(entity, APPLICATION_XML_TYPE),
-				Schema.Entity.class);
+		Throttle.Permit permit = throttle.acquire(Throttle.Operation.READ);
+		try {
+			target.path(entity.field("id").value).request(APPLICATION_XML_TYPE)
+					.put(entity(entity, APPLICATION_XML_TYPE), Schema.Entity.class);
+			permit.complete();
+		} catch (RuntimeException e) {
+			throw permit.fail(e);
+		} finally {
+			permit.release();
+		}
 	}
 
+	/**
+	 * Upload an attachment. The stream is sent with chunked transfer encoding,
+	 * so it is never buffered as a whole, and no faster than the upload
+	 * bandwidth limit of the server allows. Uploads are bounded separately from
+	 * other requests and do not affect their concurrency limit.
+	 */
 	public void attach(String filename, InputStream in) {
-		target.path(entity.field("id").value).path("attachments").request(APPLICATION_XML_TYPE).header("Slug", filename)
-				.post(entity(in, APPLICATION_OCTET_STREAM_TYPE));
+		throttle.acquireUpload();
+		try {
+			Response response = target.path(entity.field("id").value).path("attachments")
+					.request(APPLICATION_XML_TYPE).header("Slug", filename)
+					.property(ClientProperties.REQUEST_ENTITY_PROCESSING, RequestEntityProcessing.CHUNKED)
+					.post(entity(throttle.limit(in), APPLICATION_OCTET_STREAM_TYPE));
+			int status = response.getStatus();
+			response.close();
+			if (status != HttpURLConnection.HTTP_OK && status != HttpURLConnection.HTTP_CREATED) {
+				throw new QualityCenterException("Failed to upload attachment " + filename + " (HTTP " + status
+						+ ")", status);
+			}
+		} finally {
+			throttle.releaseUpload();
+		}
 	}
 
 }
@@ -0,0 +1,69 @@
+package org.jenkinsci.plugins.qc.client;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The constant fields of entities that are created repeatedly, such as the
+ * owner and subtype of every run.
+ * <p>
+ * The constant fields are serialized to XML once, when the template is first
+ * used. Entities created from a template (see
+ * {@link QualityCenter#create(String, String, String, EntityTemplate)}) only
+ * hold their own, variable fields and the pre-serialized fragment is copied
+ * verbatim into each request. A template must not be modified once it has been
+ * used.
+ */
+public class EntityTemplate {
+
+	private final String type;
+	private final List<Schema.Field> fields = new ArrayList<Schema.Field>();
+	private byte[] fragment;
+
+	public EntityTemplate(String type) {
+		this.type = type;
+	}
+
+	/**
+	 * Add a constant field.
+	 */
+	public EntityTemplate field(String name, String value) {
+		if (fragment != null) {
+			throw new IllegalStateException("Entity template is already in use");
+		}
+		Schema.Field field = new Schema.Field();
+		field.name = name;
+		field.value = value;
+		fields.add(field);
+		return this;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	List<Schema.Field> fields() {
+		return Collections.unmodifiableList(fields);
+	}
+
+	/**
+	 * @return the UTF-8 encoded XML of the constant fields.
+	 */
+	synchronized byte[] fragment() {
+		if (fragment == null) {
+			StringBuilder builder = new StringBuilder();
+			for (Schema.Field field : fields) {
+				EntityWriter.appendField(builder, field);
+			}
+			try {
+				fragment = builder.toString().getBytes("UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new Error(e);
+			}
+		}
+		return fragment;
+	}
+
+}
@@ -0,0 +1,111 @@
+package org.jenkinsci.plugins.qc.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+
+/**
+ * Writes entities as XML without going through JAXB, copying the
+ * pre-serialized fields of the entity's {@link EntityTemplate} (if any)
+ * verbatim. The output is byte for byte the same as JAXB's for
+ * {@link Schema.Entity}.
+ */
+@Produces(MediaType.APPLICATION_XML)
+class EntityWriter implements MessageBodyWriter<Schema.Entity> {
+
+	private static final String CHARSET = "UTF-8";
+
+	@Override
+	public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		return type == Schema.Entity.class;
+	}
+
+	@Override
+	public long getSize(Schema.Entity entity, Class<?> type, Type genericType, Annotation[] annotations,
+			MediaType mediaType) {
+		return -1;
+	}
+
+	@Override
+	public void writeTo(Schema.Entity entity, Class<?> type, Type genericType, Annotation[] annotations,
+			MediaType mediaType, MultivaluedMap<String, Object> httpHeaders, OutputStream out) throws IOException,
+			WebApplicationException {
+		StringBuilder builder = new StringBuilder();
+		builder.append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?><Entity");
+		if (entity.type != null) {
+			builder.append(" Type=\"");
+			escape(builder, entity.type, true);
+			builder.append('"');
+		}
+		byte[] fragment = entity.template != null ? entity.template.fragment() : new byte[0];
+		if (fragment.length == 0 && entity.fields.isEmpty()) {
+			builder.append("><Fields/></Entity>");
+			out.write(builder.toString().getBytes(CHARSET));
+			return;
+		}
+		builder.append("><Fields>");
+		out.write(builder.toString().getBytes(CHARSET));
+		out.write(fragment);
+
+		builder.setLength(0);
+		for (Schema.Field field : entity.fields) {
+			appendField(builder, field);
+		}
+		builder.append("</Fields></Entity>");
+		out.write(builder.toString().getBytes(CHARSET));
+	}
+
+	static void appendField(StringBuilder builder, Schema.Field field) {
+		builder.append("<Field Name=\"");
+		escape(builder, field.name, true);
+		if (field.value == null) {
+			builder.append("\"/>");
+		} else {
+			builder.append("\"><Value>");
+			escape(builder, field.value, false);
+			builder.append("</Value></Field>");
+		}
+	}
+
+	/**
+	 * Escape the text the way JAXB does: only what XML requires, plus carriage
+	 * returns (and in attributes tabs and line feeds, which attribute value
+	 * normalization would otherwise turn into spaces). Like JAXB, other
+	 * characters, including control characters, are written as they are.
+	 */
+	private static void escape(StringBuilder builder, String text, boolean attribute) {
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (c) {
+			case '&':
+				builder.append("&amp;");
+				break;
+			case '<':
+				builder.append("&lt;");
+				break;
+			case '\r':
+				builder.append("&#xD;");
+				break;
+			case '"':
+				builder.append(attribute ? "&quot;" : "\"");
+				break;
+			case '\t':
+				builder.append(attribute ? "&#x9;" : "\t");
+				break;
+			case '\n':
+				builder.append(attribute ? "&#xA;" : "\n");
+				break;
+			default:
+				builder.append(c);
+			}
+		}
+	}
+
+}
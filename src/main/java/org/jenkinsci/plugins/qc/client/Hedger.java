@@ -0,0 +1,217 @@
+package org.jenkinsci.plugins.qc.client;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hedged execution of idempotent requests to a single Quality Center server.
+ * <p>
+ * The latencies of recent requests are tracked per {@link Throttle.Operation}
+ * and, once a request has taken longer than the configured percentile of those
+ * of its kind, a duplicate request is sent. Whichever answers first wins and
+ * the other one is cancelled. As blocking reads cannot be interrupted, a
+ * cancelled request may still run until it completes or hits the read timeout.
+ * <p>
+ * Every attempt takes its own {@link Throttle} permit, and only the time spent
+ * on the request itself (not waiting for the permit) counts towards the
+ * latencies. No duplicate is sent while the throttle is saturated, as it would
+ * only add load to a server that is already slow.
+ * <p>
+ * Like {@link Throttle}, instances are shared by all clients of the same server.
+ */
+final class Hedger {
+
+	private static final int WINDOW = 256;
+	private static final int MIN_SAMPLES = 20;
+
+	private static final ConcurrentMap<String, Hedger> HEDGERS = new ConcurrentHashMap<String, Hedger>();
+
+	private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "Quality Center hedged request " + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	static Hedger forServer(String url) {
+		Hedger hedger = HEDGERS.get(url);
+		if (hedger == null) {
+			Hedger created = new Hedger(Throttle.forServer(url));
+			hedger = HEDGERS.putIfAbsent(url, created);
+			if (hedger == null) {
+				hedger = created;
+			}
+		}
+		return hedger;
+	}
+
+	private final Throttle throttle;
+	private final Map<Throttle.Operation, Window> windows = new EnumMap<Throttle.Operation, Window>(
+			Throttle.Operation.class);
+	private int percentile;
+
+	private Hedger(Throttle throttle) {
+		this.throttle = throttle;
+		for (Throttle.Operation operation : Throttle.Operation.values()) {
+			windows.put(operation, new Window());
+		}
+	}
+
+	/**
+	 * @param percentile
+	 *            The latency percentile after which a duplicate request is sent
+	 *            (zero disables hedging).
+	 */
+	synchronized void configure(int percentile) {
+		this.percentile = Math.max(0, Math.min(percentile, 99));
+	}
+
+	/**
+	 * Execute an idempotent request, sending a duplicate if it is slow.
+	 *
+	 * @param operation
+	 *            The kind of request, whose latencies are tracked separately.
+	 */
+	<T> T execute(Throttle.Operation operation, Request<T> request) {
+		long threshold = threshold(operation);
+		if (threshold < 0) {
+			return call(attempt(operation, request));
+		}
+
+		CompletionService<T> completion = new ExecutorCompletionService<T>(EXECUTOR);
+		Future<T> primary = completion.submit(attempt(operation, request));
+		Future<T> backup = null;
+		try {
+			Future<T> first = completion.poll(threshold, TimeUnit.NANOSECONDS);
+			if (first == null) {
+				if (!throttle.isSaturated()) {
+					backup = completion.submit(attempt(operation, request));
+				}
+				first = completion.take();
+			}
+			try {
+				return first.get();
+			} catch (ExecutionException e) {
+				if (backup == null) {
+					throw e;
+				}
+				// The other request may still succeed
+				return completion.take().get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new QualityCenterException("Interrupted while waiting for response", e);
+		} catch (ExecutionException e) {
+			throw propagate(e.getCause());
+		} finally {
+			primary.cancel(true);
+			if (backup != null) {
+				backup.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * @return a single attempt of the request under its own throttle permit.
+	 */
+	private <T> Callable<T> attempt(final Throttle.Operation operation, final Request<T> request) {
+		return new Callable<T>() {
+			@Override
+			public T call() {
+				Throttle.Permit permit = throttle.acquire(operation);
+				try {
+					long start = System.nanoTime();
+					T result = request.send(permit);
+					record(operation, System.nanoTime() - start);
+					return result;
+				} catch (RuntimeException e) {
+					throw permit.fail(e);
+				} finally {
+					permit.release();
+				}
+			}
+		};
+	}
+
+	private static <T> T call(Callable<T> request) {
+		try {
+			return request.call();
+		} catch (Exception e) {
+			throw propagate(e);
+		}
+	}
+
+	private static RuntimeException propagate(Throwable cause) {
+		if (cause instanceof RuntimeException) {
+			return (RuntimeException) cause;
+		}
+		if (cause instanceof Error) {
+			throw (Error) cause;
+		}
+		return new QualityCenterException(String.valueOf(cause.getMessage()), cause);
+	}
+
+	private synchronized void record(Throttle.Operation operation, long latency) {
+		Window window = windows.get(operation);
+		window.latencies[window.next] = latency;
+		window.next = (window.next + 1) % WINDOW;
+		window.samples = Math.min(window.samples + 1, WINDOW);
+	}
+
+	/**
+	 * @return the hedging threshold of the operation in nanoseconds, or -1 if
+	 *         hedging is disabled, there are not enough samples yet or the
+	 *         throttle is saturated.
+	 */
+	private synchronized long threshold(Throttle.Operation operation) {
+		Window window = windows.get(operation);
+		if (percentile == 0 || window.samples < MIN_SAMPLES || throttle.isSaturated()) {
+			return -1;
+		}
+		long[] sorted = Arrays.copyOf(window.latencies, window.samples);
+		Arrays.sort(sorted);
+		return sorted[sorted.length * percentile / 100];
+	}
+
+	/**
+	 * The latencies of the recent requests of one kind (nanoseconds), as a
+	 * page of entities naturally takes much longer than a session check.
+	 */
+	private static final class Window {
+
+		private final long[] latencies = new long[WINDOW];
+		private int samples;
+		private int next;
+
+	}
+
+	/**
+	 * A single HTTP exchange, which may be sent more than once.
+	 */
+	interface Request<T> {
+
+		/**
+		 * Send the request and complete the permit with its outcome.
+		 */
+		T send(Throttle.Permit permit);
+
+	}
+
+}
@@ -0,0 +1,91 @@
+package org.jenkinsci.plugins.qc.client;
+
+/**
+ * Transport options for a {@link QualityCenter} client.
+ */
+public class Options {
+
+	private boolean compression = true;
+	private boolean requestCompression;
+	private boolean chunked;
+	private int connectTimeout;
+	private int readTimeout;
+	private int hedgePercentile;
+
+	/**
+	 * Negotiate gzip/deflate compressed responses (enabled by default).
+	 */
+	public Options compression(boolean compression) {
+		this.compression = compression;
+		return this;
+	}
+
+	/**
+	 * Gzip compress request bodies. Only enable this if the server (or the
+	 * proxy in front of it) accepts compressed requests.
+	 */
+	public Options requestCompression(boolean requestCompression) {
+		this.requestCompression = requestCompression;
+		return this;
+	}
+
+	/**
+	 * Stream request bodies using chunked transfer encoding rather than
+	 * buffering them to send a {@code Content-Length}.
+	 */
+	public Options chunked(boolean chunked) {
+		this.chunked = chunked;
+		return this;
+	}
+
+	/**
+	 * Timeout for establishing connections in milliseconds (zero for none).
+	 */
+	public Options connectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+		return this;
+	}
+
+	/**
+	 * Timeout for reading responses in milliseconds (zero for none).
+	 */
+	public Options readTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+		return this;
+	}
+
+	/**
+	 * Send a duplicate of idempotent requests (paged queries and session
+	 * checks) that take longer than this percentile of recent request
+	 * latencies (zero disables hedging).
+	 */
+	public Options hedgePercentile(int hedgePercentile) {
+		this.hedgePercentile = hedgePercentile;
+		return this;
+	}
+
+	public boolean isCompression() {
+		return compression;
+	}
+
+	public boolean isRequestCompression() {
+		return requestCompression;
+	}
+
+	public boolean isChunked() {
+		return chunked;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	public int getHedgePercentile() {
+		return hedgePercentile;
+	}
+
+}
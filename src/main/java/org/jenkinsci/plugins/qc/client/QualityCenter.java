@@ -5,68 +5,149 @@ import java.util.ArrayList;
 import java.util.List;
 
 import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Invocation;
 import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.MediaType;
 
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.RequestEntityProcessing;
 import org.glassfish.jersey.client.authentication.HttpAuthenticationFeature;
+import org.glassfish.jersey.client.filter.EncodingFilter;
+import org.glassfish.jersey.message.DeflateEncoder;
+import org.glassfish.jersey.message.GZipEncoder;
 import org.glassfish.jersey.message.MessageProperties;
 
 public class QualityCenter {
 
 	public static QualityCenter create(String url) {
+		return create(url, new Options());
+	}
+
+	public static QualityCenter create(String url, Options options) {
 		WebTarget target = ClientBuilder.newClient().target(url);
 		target.property(MessageProperties.XML_SECURITY_DISABLE, Boolean.TRUE);
+		if (options.isCompression() || options.isRequestCompression()) {
+			// Advertises Accept-Encoding and decodes compressed responses
+			target.register(EncodingFilter.class);
+			target.register(GZipEncoder.class);
+			target.register(DeflateEncoder.class);
+		}
+		if (options.isRequestCompression()) {
+			target.property(ClientProperties.USE_ENCODING, "gzip");
+		}
+		target.property(ClientProperties.REQUEST_ENTITY_PROCESSING,
+				options.isChunked() ? RequestEntityProcessing.CHUNKED : RequestEntityProcessing.BUFFERED);
+		target.property(ClientProperties.CONNECT_TIMEOUT, options.getConnectTimeout());
+		target.property(ClientProperties.READ_TIMEOUT, options.getReadTimeout());
 		/* target.register(new LoggingFilter()); */
+		target.register(new EntityWriter());
 		target.register(new SessionFilter());
 		target.register(new ResponseFilter());
-		return new QualityCenter(target);
+		Hedger hedger = Hedger.forServer(url);
+		hedger.configure(options.getHedgePercentile());
+		return new QualityCenter(target, Throttle.forServer(url), hedger);
 	}
 
 	private WebTarget root;
+	private Throttle throttle;
+	private Hedger hedger;
 
-	private QualityCenter(WebTarget root) {
+	private QualityCenter(WebTarget root, Throttle throttle, Hedger hedger) {
 		this.root = root;
+		this.throttle = throttle;
+		this.hedger = hedger;
 	}
 
 	public List<String> domains() {
 		List<String> domains = new ArrayList<String>();
-		for (Schema.Domain domain : root.path("rest/domains").request().get(new DomainCollection())) {
-			domains.add(domain.name);
+		Throttle.Permit permit = throttle.acquire(Throttle.Operation.QUERY);
+		try {
+			for (Schema.Domain domain : root.path("rest/domains").request().get(new DomainCollection())) {
+				domains.add(domain.name);
+			}
+			permit.complete();
+		} catch (RuntimeException e) {
+			throw permit.fail(e);
+		} finally {
+			permit.release();
 		}
 		return domains;
 	}
 
 	public List<String> projects(String domain) {
 		List<String> projects = new ArrayList<String>();
-		for (Schema.Project project : root.path("rest/domains").path(domain).path("projects").request()
-				.get(new ProjectCollection())) {
-			projects.add(project.name);
+		Throttle.Permit permit = throttle.acquire(Throttle.Operation.QUERY);
+		try {
+			for (Schema.Project project : root.path("rest/domains").path(domain).path("projects").request()
+					.get(new ProjectCollection())) {
+				projects.add(project.name);
+			}
+			permit.complete();
+		} catch (RuntimeException e) {
+			throw permit.fail(e);
+		} finally {
+			permit.release();
 		}
 		return projects;
 	}
 
 	public Entity create(String domain, String project, String resource) {
 		WebTarget target = root.path("rest/domains").path(domain).path("projects").path(project).path(resource);
-		return new Entity(target, new Schema.Entity());
+		return new Entity(target, throttle, new Schema.Entity());
+	}
+
+	/**
+	 * Create an entity with the constant fields of a template (and its type),
+	 * so that only the variable fields need to be added.
+	 */
+	public Entity create(String domain, String project, String resource, EntityTemplate template) {
+		Schema.Entity entity = new Schema.Entity();
+		entity.type = template.getType();
+		entity.template = template;
+		return new Entity(root.path("rest/domains").path(domain).path("projects").path(project).path(resource),
+				throttle, entity);
 	}
 
 	public Query query(String domain, String project) {
-		return new Query(root.path("rest/domains").path(domain).path("projects").path(project));
+		return new Query(root.path("rest/domains").path(domain).path("projects").path(project), throttle, hedger);
 	}
 
 	public boolean login(String username, String password) {
 		HttpAuthenticationFeature feature = HttpAuthenticationFeature.basic(username, password);
-		return root.path("/authentication-point/authenticate").register(feature).request(MediaType.TEXT_PLAIN_TYPE)
-				.get().getStatus() == HttpURLConnection.HTTP_OK;
+		return status(root.path("/authentication-point/authenticate").register(feature)
+				.request(MediaType.TEXT_PLAIN_TYPE)) == HttpURLConnection.HTTP_OK;
 	}
 
 	public boolean isAuthenticated() {
-		return root.path("rest/is-authenticated").request().get().getStatus() == HttpURLConnection.HTTP_OK;
+		final Invocation.Builder request = root.path("rest/is-authenticated").request();
+		return hedger.execute(Throttle.Operation.AUTHENTICATION, new Hedger.Request<Integer>() {
+			@Override
+			public Integer send(Throttle.Permit permit) {
+				return status(request, permit);
+			}
+		}) == HttpURLConnection.HTTP_OK;
 	}
 
 	public void logout() {
-		root.path("/authentication-point/logout").request().get();
+		status(root.path("/authentication-point/logout").request());
+	}
+
+	private int status(Invocation.Builder request) {
+		Throttle.Permit permit = throttle.acquire(Throttle.Operation.AUTHENTICATION);
+		try {
+			return status(request, permit);
+		} catch (RuntimeException e) {
+			throw permit.fail(e);
+		} finally {
+			permit.release();
+		}
+	}
+
+	private static int status(Invocation.Builder request, Throttle.Permit permit) {
+		int status = request.get().getStatus();
+		permit.complete(status);
+		return status;
 	}
 
 	private static class DomainCollection extends GenericType<List<Schema.Domain>> {
@@ -4,8 +4,32 @@ public class QualityCenterException extends RuntimeException {
 	
 	private static final long serialVersionUID = 1L;
 
+	private final int status;
+
 	public QualityCenterException(String message) {
+		this(message, 0);
+	}
+
+	/**
+	 * @param status
+	 *            The HTTP status of the response reporting the error.
+	 */
+	public QualityCenterException(String message, int status) {
 		super(message);
+		this.status = status;
+	}
+
+	public QualityCenterException(String message, Throwable cause) {
+		super(message, cause);
+		this.status = 0;
+	}
+
+	/**
+	 * @return the HTTP status of the response reporting the error (zero if not
+	 *         reported by a response).
+	 */
+	public int getStatus() {
+		return status;
 	}
 	
 }
@@ -10,19 +10,21 @@ import javax.ws.rs.core.GenericType;
 import org.glassfish.jersey.uri.UriComponent;
 import org.glassfish.jersey.uri.UriComponent.Type;
 
-import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
-
 public class Query {
 
 	private static final int PAGE_SIZE = 50;
 
 	private final WebTarget root;
+	private final Throttle throttle;
+	private final Hedger hedger;
 	private String resource;
 	private String filter;
 	private String[] fields;
 
-	Query(WebTarget root) {
+	Query(WebTarget root, Throttle throttle, Hedger hedger) {
 		this.root = root;
+		this.throttle = throttle;
+		this.hedger = hedger;
 	}
 
 	public Query resource(String resource) {
@@ -35,8 +37,9 @@ public class Query {
 		return this;
 	}
 
-	// TODO: Implement field filtering (and remove warning suppression)
-	@SuppressFBWarnings({ "URF_UNREAD_FIELD" })
+	/**
+	 * Only return the given fields of each entity, rather than every field.
+	 */
 	public Query fields(String... fields) {
 		this.fields = fields;
 		return this;
@@ -55,14 +58,30 @@ public class Query {
 		}
 
 		if (fields != null) {
-			// TODO
+			StringBuilder builder = new StringBuilder();
+			for (String field : fields) {
+				if (builder.length() > 0) {
+					builder.append(',');
+				}
+				builder.append(field);
+			}
+			target = target.queryParam("fields", builder.toString());
 		}
 
 		do {
-			List<Schema.Entity> entities = target.queryParam("page-size", PAGE_SIZE)
-					.queryParam("start-index", (page++ * PAGE_SIZE) + 1).request().get(new EntityCollectionType());
+			final WebTarget pageTarget = target.queryParam("page-size", PAGE_SIZE).queryParam("start-index",
+					(page++ * PAGE_SIZE) + 1);
+			List<Schema.Entity> entities = hedger.execute(Throttle.Operation.QUERY,
+					new Hedger.Request<List<Schema.Entity>>() {
+						@Override
+						public List<Schema.Entity> send(Throttle.Permit permit) {
+							List<Schema.Entity> result = pageTarget.request().get(new EntityCollectionType());
+							permit.complete();
+							return result;
+						}
+					});
 			for (Schema.Entity entity : entities) {
-				results.add(new Entity(root.path(resource), entity));
+				results.add(new Entity(root.path(resource), throttle, entity));
 			}
 			count = entities.size();
 		} while (count > 0);
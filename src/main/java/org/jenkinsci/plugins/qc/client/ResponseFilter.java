@@ -41,7 +41,7 @@ public class ResponseFilter implements ClientResponseFilter {
 					builder.append(ex.title);
 					builder.append(LINE_SEPARATOR);
 					builder.append(ex.stacktrace);
-					throw new QualityCenterException(builder.toString());
+					throw new QualityCenterException(builder.toString(), responseContext.getStatus());
 
 				} catch (JAXBException e) {
 					throw new WebApplicationException(e);
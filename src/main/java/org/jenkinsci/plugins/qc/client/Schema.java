@@ -7,6 +7,7 @@ import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlElementWrapper;
 import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlTransient;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 
@@ -38,15 +39,39 @@ class Schema {
 		@XmlElementWrapper(name = "Fields")
 		public List<Field> fields = new ArrayList<Schema.Field>();
 
+		/**
+		 * The constant fields, written ahead of {@link #fields} by {@link EntityWriter}.
+		 */
+		@XmlTransient
+		public EntityTemplate template;
+
 		public Field field(String name) {
 			for (Field field : fields) {
 				if (field.name.equals(name)) {
 					return field;
 				}
 			}
+			if (template != null) {
+				detach();
+				return field(name);
+			}
 			throw new IllegalArgumentException("No such entity field with name = " + name);
 		}
 
+		/**
+		 * Copy the template fields into the entity, so that they can be read and
+		 * changed like its own fields.
+		 */
+		private void detach() {
+			List<Field> own = fields;
+			fields = new ArrayList<Schema.Field>();
+			for (Field field : template.fields()) {
+				add(field.name, field.value);
+			}
+			fields.addAll(own);
+			template = null;
+		}
+
 		public void add(String name, String value) {
 			Field field = new Field();
 			field.name = name;
@@ -1,8 +1,8 @@
 package org.jenkinsci.plugins.qc.client;
 
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.ws.rs.client.ClientRequestContext;
 import javax.ws.rs.client.ClientRequestFilter;
@@ -12,7 +12,7 @@ import javax.ws.rs.core.NewCookie;
 
 class SessionFilter implements ClientRequestFilter, ClientResponseFilter {
 
-	private final Map<String, NewCookie> cookies = new HashMap<String, NewCookie>();
+	private final Map<String, NewCookie> cookies = new ConcurrentHashMap<String, NewCookie>();
 
 	@Override
 	public void filter(ClientRequestContext requestContext, ClientResponseContext responseContext) throws IOException {
@@ -0,0 +1,403 @@
+package org.jenkinsci.plugins.qc.client;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+import javax.ws.rs.WebApplicationException;
+
+/**
+ * Client side flow control for a single Quality Center server.
+ * <p>
+ * Every request first takes a token from a token bucket, which bounds the
+ * request rate, and then waits for a slot under an adaptive concurrency limit.
+ * The limit grows additively while the server keeps answering close to the
+ * best latency seen recently, and is cut in half when the server is overloaded
+ * (server errors, throttling responses, timeouts and refused connections) or
+ * the latency climbs well above that baseline (AIMD). Latency baselines are
+ * kept per {@link Operation}, as a page of entities naturally takes much longer
+ * than a session check. Other failures, such as a missing entity, say nothing
+ * about the load of the server and are ignored.
+ * <p>
+ * Uploads are kept out of the adaptive limit, as their latency depends on the
+ * size of the attachment rather than on the load of the server. Instead, at
+ * most {@link #MAX_UPLOADS} run at a time (see {@link #acquireUpload()}) and
+ * uploaded bytes (see {@link #limit(InputStream)}) are bounded by a separate
+ * token bucket, so that large attachments cannot saturate the network.
+ * <p>
+ * Instances are shared by all {@link QualityCenter} clients talking to the same
+ * server URL, so concurrent builds on the controller are limited together.
+ */
+public final class Throttle {
+
+	public static final int DEFAULT_MAX_CONCURRENCY = 16;
+	public static final int MAX_UPLOADS = 4;
+
+	private static final int MIN_LIMIT = 1;
+	private static final double INITIAL_LIMIT = 4;
+	private static final double BACKOFF_RATIO = 0.5;
+	private static final double LATENCY_TOLERANCE = 2.0;
+	private static final double SMOOTHING = 0.2;
+	private static final int BASELINE_WINDOW = 500;
+	private static final int MIN_SAMPLES = 10;
+	private static final long MIN_BACKOFF_INTERVAL = 100000000L; // 100ms
+
+	private static final ConcurrentMap<String, Throttle> THROTTLES = new ConcurrentHashMap<String, Throttle>();
+
+	/**
+	 * @param url
+	 *            The Quality Center server URL.
+	 * @return the throttle shared by all clients of the given server.
+	 */
+	public static Throttle forServer(String url) {
+		Throttle throttle = THROTTLES.get(url);
+		if (throttle == null) {
+			Throttle created = new Throttle();
+			throttle = THROTTLES.putIfAbsent(url, created);
+			if (throttle == null) {
+				throttle = created;
+			}
+		}
+		return throttle;
+	}
+
+	// Token bucket (a rate of zero disables rate limiting)
+	private double rate;
+	private double tokens;
+	private long refilled = System.nanoTime();
+
+	// Adaptive concurrency limit
+	private int maxLimit = DEFAULT_MAX_CONCURRENCY;
+	private double limit = INITIAL_LIMIT;
+	private int inflight;
+
+	// Latency tracking
+	private final Map<Operation, Latency> latencies = new EnumMap<Operation, Latency>(Operation.class);
+	private long lastBackoff;
+
+	// Uploads (concurrency and bytes per second, zero for unlimited)
+	private final Semaphore uploads = new Semaphore(MAX_UPLOADS, true);
+	private final Object bandwidthLock = new Object();
+	private long bandwidth;
+	private double byteTokens;
+	private long byteRefilled = System.nanoTime();
+
+	private Throttle() {
+		for (Operation operation : Operation.values()) {
+			latencies.put(operation, new Latency());
+		}
+	}
+
+	/**
+	 * Update the throttle settings.
+	 *
+	 * @param rate
+	 *            The maximum number of requests per second (zero for
+	 *            unlimited).
+	 * @param maxConcurrency
+	 *            The upper bound of the adaptive concurrency limit (zero for
+	 *            the default).
+	 */
+	public synchronized void configure(int rate, int maxConcurrency) {
+		this.rate = Math.max(0, rate);
+		this.tokens = Math.min(tokens, burst());
+		this.maxLimit = maxConcurrency > 0 ? maxConcurrency : DEFAULT_MAX_CONCURRENCY;
+		this.limit = Math.min(limit, maxLimit);
+		notifyAll();
+	}
+
+	/**
+	 * Update the upload bandwidth limit.
+	 *
+	 * @param bandwidth
+	 *            The maximum number of bytes per second uploaded by all
+	 *            clients (zero for unlimited).
+	 */
+	public void configureBandwidth(long bandwidth) {
+		synchronized (bandwidthLock) {
+			this.bandwidth = Math.max(0, bandwidth);
+			this.byteTokens = Math.min(byteTokens, this.bandwidth);
+		}
+	}
+
+	/**
+	 * Block until an upload may be started. Every call must be followed by
+	 * {@link #releaseUpload()}, typically in a {@code finally} block.
+	 */
+	void acquireUpload() {
+		try {
+			uploads.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new QualityCenterException("Interrupted while waiting to upload", e);
+		}
+	}
+
+	void releaseUpload() {
+		uploads.release();
+	}
+
+	/**
+	 * @return a stream that reads from the given stream no faster than the
+	 *         upload bandwidth limit allows (shared with all other limited
+	 *         streams).
+	 */
+	public InputStream limit(InputStream in) {
+		return new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b >= 0) {
+					consume(1);
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int length) throws IOException {
+				int count = super.read(buffer, offset, length);
+				if (count > 0) {
+					consume(count);
+				}
+				return count;
+			}
+		};
+	}
+
+	/**
+	 * Take the given number of bytes from the bandwidth bucket, sleeping off
+	 * any debt so that bursts are paid for by the reader that caused them.
+	 */
+	private void consume(int bytes) throws InterruptedIOException {
+		long delay;
+		synchronized (bandwidthLock) {
+			if (bandwidth <= 0) {
+				return;
+			}
+			long now = System.nanoTime();
+			byteTokens = Math.min(bandwidth, byteTokens + (now - byteRefilled) * bandwidth / 1e9);
+			byteRefilled = now;
+			byteTokens -= bytes;
+			delay = byteTokens < 0 ? (long) Math.ceil(-byteTokens * 1000 / bandwidth) : 0;
+		}
+		if (delay > 0) {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while limiting upload bandwidth");
+			}
+		}
+	}
+
+	/**
+	 * @return the current concurrency limit.
+	 */
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	/**
+	 * @return whether requests are currently waiting for (or about to wait for)
+	 *         a slot under the concurrency limit.
+	 */
+	synchronized boolean isSaturated() {
+		return inflight >= (int) limit;
+	}
+
+	/**
+	 * Block until the request may be sent. The returned permit must always be
+	 * released, typically in a {@code finally} block.
+	 *
+	 * @param operation
+	 *            The kind of request, whose latency is tracked separately.
+	 * @return the permit for a single request.
+	 */
+	public Permit acquire(Operation operation) {
+		synchronized (this) {
+			try {
+				while (true) {
+					long now = System.nanoTime();
+					refill(now);
+					if (inflight >= (int) limit) {
+						wait();
+					} else if (rate <= 0) {
+						break;
+					} else if (tokens >= 1) {
+						tokens -= 1;
+						break;
+					} else {
+						wait(Math.max(1L, (long) Math.ceil((1 - tokens) * 1000 / rate)));
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new QualityCenterException("Interrupted while waiting to send request", e);
+			}
+			inflight++;
+		}
+		return new Permit(operation, System.nanoTime());
+	}
+
+	private double burst() {
+		return Math.max(1, rate);
+	}
+
+	private void refill(long now) {
+		if (rate > 0) {
+			tokens = Math.min(burst(), tokens + (now - refilled) * rate / 1e9);
+		}
+		refilled = now;
+	}
+
+	private synchronized void release(Operation operation, long latency, Boolean overloaded) {
+		boolean saturated = inflight-- >= (int) limit;
+
+		// Requests that failed for other reasons tell nothing about the load
+		if (overloaded != null) {
+			Latency baseline = latencies.get(operation);
+			long now = System.nanoTime();
+			if (overloaded || baseline.record(latency)) {
+				// Back off at most once per round trip, otherwise every request of
+				// the same overloaded window would halve the limit again.
+				if (now - lastBackoff > Math.max(baseline.smoothed, MIN_BACKOFF_INTERVAL)) {
+					limit = Math.max(MIN_LIMIT, limit * BACKOFF_RATIO);
+					lastBackoff = now;
+				}
+			} else if (saturated) {
+				limit = Math.min(maxLimit, limit + 1 / limit);
+			}
+		}
+		notifyAll();
+	}
+
+	/**
+	 * @return whether the failure indicates that the server is overloaded (or
+	 *         unreachable) rather than that the request itself was rejected.
+	 */
+	static boolean isOverload(Throwable failure) {
+		for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+			if (cause instanceof SocketTimeoutException || cause instanceof ConnectException) {
+				return true;
+			}
+			if (cause instanceof WebApplicationException) {
+				return isOverload(((WebApplicationException) cause).getResponse().getStatus());
+			}
+			if (cause instanceof QualityCenterException && ((QualityCenterException) cause).getStatus() > 0) {
+				return isOverload(((QualityCenterException) cause).getStatus());
+			}
+		}
+		return false;
+	}
+
+	private static boolean isOverload(int status) {
+		return status >= HttpURLConnection.HTTP_INTERNAL_ERROR || status == 429;
+	}
+
+	/**
+	 * The kinds of requests, which differ too much in latency to share a
+	 * latency baseline.
+	 */
+	public enum Operation {
+		AUTHENTICATION, QUERY, READ, CREATE, UPDATE
+	}
+
+	/**
+	 * The latency baseline and smoothed latency of one kind of request
+	 * (nanoseconds).
+	 */
+	private static final class Latency {
+
+		private long min = Long.MAX_VALUE;
+		private double smoothed;
+		private int samples;
+		private int window;
+
+		/**
+		 * @return whether the latency has climbed well above the baseline.
+		 */
+		boolean record(long latency) {
+			// Periodically forget the baseline so it can follow a server whose
+			// normal latency has changed.
+			if (++window >= BASELINE_WINDOW) {
+				window = 0;
+				min = latency;
+			}
+			min = Math.min(min, latency);
+			smoothed = smoothed == 0 ? latency : smoothed + SMOOTHING * (latency - smoothed);
+			samples++;
+			return samples >= MIN_SAMPLES && smoothed > min * LATENCY_TOLERANCE;
+		}
+
+	}
+
+	/**
+	 * A slot for a single request, which records the outcome of the request
+	 * when released.
+	 */
+	public final class Permit {
+
+		private final Operation operation;
+		private final long start;
+		private Boolean overloaded;
+		private boolean released;
+
+		private Permit(Operation operation, long start) {
+			this.operation = operation;
+			this.start = start;
+		}
+
+		/**
+		 * Mark the request as successfully completed.
+		 */
+		public void complete() {
+			complete(HttpURLConnection.HTTP_OK);
+		}
+
+		/**
+		 * Mark the request as completed with the given status. Server errors and
+		 * throttling responses count as failures.
+		 *
+		 * @param status
+		 *            The HTTP response status.
+		 */
+		public void complete(int status) {
+			overloaded = isOverload(status);
+		}
+
+		/**
+		 * Record the failure of the request, which only counts against the
+		 * server if it indicates overload.
+		 *
+		 * @return the failure, to be rethrown.
+		 */
+		public <E extends RuntimeException> E fail(E failure) {
+			if (isOverload(failure)) {
+				overloaded = true;
+			}
+			return failure;
+		}
+
+		/**
+		 * Release the slot. Requests that were neither completed nor failed
+		 * with an overload are not counted.
+		 */
+		public void release() {
+			if (!released) {
+				released = true;
+				Throttle.this.release(operation, System.nanoTime() - start, overloaded);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,69 @@
+package org.jenkinsci.plugins.qc;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.Calendar;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeferredImporterTest {
+
+    private static Calendar at(int hour) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(Calendar.HOUR_OF_DAY, hour);
+        calendar.set(Calendar.MINUTE, 30);
+        return calendar;
+    }
+
+    @Test
+    public void blankWindowIsAlwaysOpen() {
+        assertTrue(DeferredImporter.isWithinWindow(null, at(0)));
+        assertTrue(DeferredImporter.isWithinWindow("", at(12)));
+        assertTrue(DeferredImporter.isWithinWindow("  ", at(23)));
+    }
+
+    @Test
+    public void window() {
+        assertFalse(DeferredImporter.isWithinWindow("9-17", at(8)));
+        assertTrue(DeferredImporter.isWithinWindow("9-17", at(9)));
+        assertTrue(DeferredImporter.isWithinWindow("9-17", at(16)));
+        assertFalse(DeferredImporter.isWithinWindow("9-17", at(17)));
+        assertTrue(DeferredImporter.isWithinWindow(" 9-17 ", at(12)));
+    }
+
+    @Test
+    public void windowWrappingAroundMidnight() {
+        assertFalse(DeferredImporter.isWithinWindow("22-6", at(21)));
+        assertTrue(DeferredImporter.isWithinWindow("22-6", at(22)));
+        assertTrue(DeferredImporter.isWithinWindow("22-6", at(23)));
+        assertTrue(DeferredImporter.isWithinWindow("22-6", at(0)));
+        assertTrue(DeferredImporter.isWithinWindow("22-6", at(5)));
+        assertFalse(DeferredImporter.isWithinWindow("22-6", at(6)));
+        assertFalse(DeferredImporter.isWithinWindow("22-6", at(12)));
+    }
+
+    @Test
+    public void invalidWindowIsClosed() {
+        assertFalse(DeferredImporter.isWithinWindow("nightly", at(0)));
+        assertFalse(DeferredImporter.isWithinWindow("22", at(22)));
+    }
+
+    @Test
+    public void validWindow() {
+        assertTrue(DeferredImporter.isValidWindow("22-6"));
+        assertTrue(DeferredImporter.isValidWindow("0-23"));
+        assertFalse(DeferredImporter.isValidWindow("22-24"));
+        assertFalse(DeferredImporter.isValidWindow("nightly"));
+    }
+
+    @Test
+    public void connectionFailure() {
+        assertTrue(DeferredImporter.isConnectionFailure(
+                new RuntimeException(new ConnectException("Connection refused"))));
+        assertFalse(DeferredImporter.isConnectionFailure(new IOException("Not a Quality Center export")));
+    }
+
+}
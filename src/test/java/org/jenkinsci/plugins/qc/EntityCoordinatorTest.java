@@ -0,0 +1,185 @@
+package org.jenkinsci.plugins.qc;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EntityCoordinatorTest {
+
+    private static final int THREADS = 8;
+
+    /**
+     * A call that counts its executions and blocks until released.
+     */
+    private static final class BlockingCall implements Callable<Object> {
+
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Object result = new Object();
+        IOException failure;
+
+        public Object call() throws Exception {
+            calls.incrementAndGet();
+            started.countDown();
+            release.await();
+            if (failure != null) {
+                throw failure;
+            }
+            return result;
+        }
+
+    }
+
+    /**
+     * Call {@code coalesce} with the same key from several threads, all of which
+     * are waiting for the first call by the time it is released.
+     */
+    private static List<Future<Object>> coalesce(ExecutorService executor, final String key,
+                                                 final BlockingCall call) throws InterruptedException {
+        List<Future<Object>> results = new ArrayList<Future<Object>>();
+        final List<Thread> waiting = new ArrayList<Thread>();
+        for (int i = 0; i < THREADS; i++) {
+            results.add(executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    synchronized (waiting) {
+                        waiting.add(Thread.currentThread());
+                    }
+                    return EntityCoordinator.INSTANCE.coalesce(key, call);
+                }
+            }));
+            if (i == 0) {
+                assertTrue(call.started.await(5, TimeUnit.SECONDS));
+            }
+        }
+
+        // Wait until every thread is blocked (on the first call, or in it)
+        long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            int blocked = 0;
+            synchronized (waiting) {
+                for (Thread thread : waiting) {
+                    if (thread.getState() == Thread.State.WAITING) {
+                        blocked++;
+                    }
+                }
+            }
+            if (blocked == THREADS) {
+                break;
+            }
+            assertTrue("Threads did not block on the running call", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        return results;
+    }
+
+    private static String key() {
+        return EntityCoordinator.key("http://qc", "DEFAULT", "Project", "test-sets", UUID.randomUUID().toString());
+    }
+
+    @Test
+    public void concurrentCallsRunOnce() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            BlockingCall call = new BlockingCall();
+            List<Future<Object>> results = coalesce(executor, key(), call);
+            call.release.countDown();
+            for (Future<Object> result : results) {
+                assertSame(call.result, result.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, call.calls.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failureReachesEveryWaiter() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            String key = key();
+            BlockingCall call = new BlockingCall();
+            call.failure = new IOException("Service unavailable");
+            List<Future<Object>> results = coalesce(executor, key, call);
+            call.release.countDown();
+            for (Future<Object> result : results) {
+                try {
+                    result.get(5, TimeUnit.SECONDS);
+                    fail("Waiter did not see the failure");
+                } catch (ExecutionException e) {
+                    assertSame(call.failure, e.getCause());
+                }
+            }
+            assertEquals(1, call.calls.get());
+
+            // The key is free again, so the next call runs rather than failing
+            BlockingCall retry = new BlockingCall();
+            retry.release.countDown();
+            assertSame(retry.result, EntityCoordinator.INSTANCE.coalesce(key, retry));
+            assertEquals(1, retry.calls.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void keyIsFreedAfterSuccess() throws Exception {
+        String key = key();
+        BlockingCall first = new BlockingCall();
+        first.release.countDown();
+        assertSame(first.result, EntityCoordinator.INSTANCE.coalesce(key, first));
+
+        BlockingCall second = new BlockingCall();
+        second.release.countDown();
+        assertSame(second.result, EntityCoordinator.INSTANCE.coalesce(key, second));
+        assertEquals(1, first.calls.get());
+        assertEquals(1, second.calls.get());
+    }
+
+    @Test
+    public void differentKeysDoNotWait() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final BlockingCall blocked = new BlockingCall();
+            Future<Object> running = executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    return EntityCoordinator.INSTANCE.coalesce("blocked", blocked);
+                }
+            });
+            assertTrue(blocked.started.await(5, TimeUnit.SECONDS));
+
+            BlockingCall other = new BlockingCall();
+            other.release.countDown();
+            assertSame(other.result, EntityCoordinator.INSTANCE.coalesce(key(), other));
+
+            blocked.release.countDown();
+            assertSame(blocked.result, running.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void keyPartsAreEscaped() {
+        assertFalse(EntityCoordinator.key("a/b", "c").equals(EntityCoordinator.key("a", "b/c")));
+        assertFalse(EntityCoordinator.key("a\\", "b").equals(EntityCoordinator.key("a", "\\b")));
+    }
+
+}
@@ -0,0 +1,99 @@
+package org.jenkinsci.plugins.qc;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PublishPlanTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTrip() throws IOException {
+        StringBuilder trace = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            trace.append("\tat com.example.Fixture.method").append(i).append("(Fixture.java:").append(i).append(")\n");
+        }
+        Map<String, String> digests = new LinkedHashMap<String, String>();
+        digests.put("com.example.FooTest", "0123456789abcdef");
+        PublishPlan plan = new PublishPlan("DEFAULT", "Project", "Root\\Plan", "Root\\Lab", "user-01=x",
+                null, "comments=\u00e9t\u00e9", "#42", ShardStrategy.HASH, 4, "agent-1", Arrays.asList(
+                new PublishPlan.TestClass("com.example.FooTest", false, 12, Arrays.asList(
+                        new PublishPlan.TestCase("passes", true, null),
+                        new PublishPlan.TestCase("fails", false, trace.toString()))),
+                new PublishPlan.TestClass("com.example.BarTest", true, 0,
+                        Collections.<PublishPlan.TestCase>emptyList())),
+                "folder/job", 42, true, digests);
+
+        File file = folder.newFile();
+        plan.write(file);
+        PublishPlan read = PublishPlan.read(file);
+
+        assertEquals("DEFAULT", read.domain);
+        assertEquals("Project", read.project);
+        assertEquals("Root\\Plan", read.planFolder);
+        assertEquals("Root\\Lab", read.labFolder);
+        assertEquals("user-01=x", read.userDefinedFields);
+        assertNull(read.runFields);
+        assertEquals("comments=\u00e9t\u00e9", read.runStepFields);
+        assertEquals("#42", read.setName);
+        assertEquals(ShardStrategy.HASH, read.shardStrategy);
+        assertEquals(4, read.shardSize);
+        assertEquals("agent-1", read.host);
+        assertEquals("folder/job", read.job);
+        assertEquals(42, read.buildNumber);
+        assertTrue(read.fullRefresh);
+        assertEquals(digests, read.digests);
+        assertEquals(2, read.classes.size());
+        assertEquals(2, read.getCaseCount());
+
+        PublishPlan.TestClass foo = read.classes.get(0);
+        assertEquals("com.example.FooTest", foo.name);
+        assertFalse(foo.passed);
+        assertEquals(12, foo.duration);
+        assertEquals("passes", foo.cases.get(0).name);
+        assertTrue(foo.cases.get(0).passed);
+        assertNull(foo.cases.get(0).actual);
+        assertEquals("fails", foo.cases.get(1).name);
+        assertFalse(foo.cases.get(1).passed);
+        assertEquals(trace.toString(), foo.cases.get(1).actual);
+
+        PublishPlan.TestClass bar = read.classes.get(1);
+        assertEquals("com.example.BarTest", bar.name);
+        assertTrue(bar.passed);
+        assertTrue(bar.cases.isEmpty());
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        File file = folder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write("not an export".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        try {
+            PublishPlan.read(file);
+            fail("Read a file that is not an export");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+}
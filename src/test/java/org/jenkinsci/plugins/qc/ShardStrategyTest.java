@@ -0,0 +1,89 @@
+package org.jenkinsci.plugins.qc;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ShardStrategyTest {
+
+    private static List<PublishPlan.TestClass> classes(String... names) {
+        List<PublishPlan.TestClass> classes = new ArrayList<PublishPlan.TestClass>();
+        for (String name : names) {
+            classes.add(new PublishPlan.TestClass(name, true, 0, Collections.<PublishPlan.TestCase>emptyList()));
+        }
+        return classes;
+    }
+
+    private static List<String> names(List<PublishPlan.TestClass> classes) {
+        List<String> names = new ArrayList<String>();
+        for (PublishPlan.TestClass testClass : classes) {
+            names.add(testClass.name);
+        }
+        return names;
+    }
+
+    @Test
+    public void none() {
+        List<PublishPlan.TestClass> classes = classes("b.BTest", "a.ATest");
+        Map<String, List<PublishPlan.TestClass>> sets = ShardStrategy.NONE.partition("#42", classes, 3);
+        assertEquals(Collections.singleton("#42"), sets.keySet());
+        assertSame(classes, sets.get("#42"));
+    }
+
+    @Test
+    public void packages() {
+        Map<String, List<PublishPlan.TestClass>> sets = ShardStrategy.PACKAGE.partition("#42",
+                classes("com.example.dao.FooTest", "RootTest", "com.example.api.BarTest", "com.example.dao.BarTest"),
+                0);
+        assertEquals(Arrays.asList("#42 [(root)]", "#42 [com.example.api]", "#42 [com.example.dao]"),
+                new ArrayList<String>(sets.keySet()));
+        assertEquals(Arrays.asList("RootTest"), names(sets.get("#42 [(root)]")));
+        assertEquals(Arrays.asList("com.example.api.BarTest"), names(sets.get("#42 [com.example.api]")));
+        assertEquals(Arrays.asList("com.example.dao.BarTest", "com.example.dao.FooTest"),
+                names(sets.get("#42 [com.example.dao]")));
+    }
+
+    @Test
+    public void hashIsStable() {
+        Map<String, List<PublishPlan.TestClass>> all = ShardStrategy.HASH.partition("#1",
+                classes("a.ATest", "b.BTest", "c.CTest", "d.DTest", "e.ETest", "f.FTest"), 3);
+        assertTrue(all.size() <= 3);
+        int count = 0;
+        for (Map.Entry<String, List<PublishPlan.TestClass>> set : all.entrySet()) {
+            count += set.getValue().size();
+            // A class lands in the same set whatever else is published with it
+            for (PublishPlan.TestClass testClass : set.getValue()) {
+                Map<String, List<PublishPlan.TestClass>> alone = ShardStrategy.HASH.partition("#1",
+                        classes(testClass.name), 3);
+                assertEquals(Collections.singleton(set.getKey()), alone.keySet());
+            }
+        }
+        assertEquals(6, count);
+    }
+
+    @Test
+    public void size() {
+        Map<String, List<PublishPlan.TestClass>> sets = ShardStrategy.SIZE.partition("#42",
+                classes("e.ETest", "d.DTest", "c.CTest", "b.BTest", "a.ATest"), 2);
+        assertEquals(Arrays.asList("#42 [1]", "#42 [2]", "#42 [3]"), new ArrayList<String>(sets.keySet()));
+        assertEquals(Arrays.asList("a.ATest", "b.BTest"), names(sets.get("#42 [1]")));
+        assertEquals(Arrays.asList("c.CTest", "d.DTest"), names(sets.get("#42 [2]")));
+        assertEquals(Arrays.asList("e.ETest"), names(sets.get("#42 [3]")));
+    }
+
+    @Test
+    public void missingSizeMeansSingleSet() {
+        List<PublishPlan.TestClass> classes = classes("a.ATest", "b.BTest");
+        assertEquals(Collections.singleton("#42"), ShardStrategy.HASH.partition("#42", classes, 0).keySet());
+        assertEquals(Collections.singleton("#42"), ShardStrategy.SIZE.partition("#42", classes, 0).keySet());
+    }
+
+}
@@ -0,0 +1,85 @@
+package org.jenkinsci.plugins.qc.client;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.ws.rs.core.MediaType;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+import static org.junit.Assert.assertEquals;
+
+public class EntityWriterTest {
+
+	private static final String SPECIAL = "a & b < c > d \"e\" 'f'\tg\r\nh ]]> \u00e9t\u00e9 \u20ac \ud83d\ude00";
+
+	private static Schema.Entity entity(String type, String... fields) {
+		Schema.Entity entity = new Schema.Entity();
+		entity.type = type;
+		for (int i = 0; i < fields.length; i += 2) {
+			entity.add(fields[i], fields[i + 1]);
+		}
+		return entity;
+	}
+
+	private static String write(Schema.Entity entity) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new EntityWriter().writeTo(entity, Schema.Entity.class, Schema.Entity.class, null,
+				MediaType.APPLICATION_XML_TYPE, null, out);
+		return out.toString("UTF-8");
+	}
+
+	private static String marshal(Schema.Entity entity) throws JAXBException, IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Marshaller marshaller = JAXBContext.newInstance(Schema.Entity.class).createMarshaller();
+		marshaller.marshal(entity, out);
+		return out.toString("UTF-8");
+	}
+
+	@Test
+	public void fields() throws Exception {
+		Schema.Entity entity = entity("run", "name", "com.example.FooTest", "status", "Passed", "comments", null);
+		assertEquals(marshal(entity), write(entity));
+	}
+
+	@Test
+	public void noFields() throws Exception {
+		Schema.Entity entity = entity(null);
+		assertEquals(marshal(entity), write(entity));
+	}
+
+	@Test
+	public void specialCharacters() throws Exception {
+		Schema.Entity entity = entity(SPECIAL, SPECIAL, SPECIAL, "plain", "");
+		assertEquals(marshal(entity), write(entity));
+	}
+
+	@Test
+	public void template() throws Exception {
+		EntityTemplate template = new EntityTemplate("run").field("owner", "jenkins").field("subtype-id", null)
+				.field("comments", SPECIAL);
+		Schema.Entity entity = new Schema.Entity();
+		entity.type = template.getType();
+		entity.template = template;
+		entity.add("name", "com.example.FooTest");
+		entity.add("status", "Failed");
+
+		Schema.Entity expected = entity("run", "owner", "jenkins", "subtype-id", null, "comments", SPECIAL,
+				"name", "com.example.FooTest", "status", "Failed");
+		assertEquals(marshal(expected), write(entity));
+	}
+
+	@Test
+	public void templateWithoutOwnFields() throws Exception {
+		EntityTemplate template = new EntityTemplate("run-step").field("status", "Passed");
+		Schema.Entity entity = new Schema.Entity();
+		entity.type = template.getType();
+		entity.template = template;
+
+		assertEquals(marshal(entity("run-step", "status", "Passed")), write(entity));
+	}
+
+}
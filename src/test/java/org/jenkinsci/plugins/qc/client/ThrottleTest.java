@@ -0,0 +1,181 @@
+package org.jenkinsci.plugins.qc.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ThrottleTest {
+
+	private static final Throttle.Operation QUERY = Throttle.Operation.QUERY;
+
+	private static Throttle throttle() {
+		return Throttle.forServer("http://" + UUID.randomUUID() + "/qcbin");
+	}
+
+	private static void complete(Throttle throttle, int status) {
+		Throttle.Permit permit = throttle.acquire(QUERY);
+		permit.complete(status);
+		permit.release();
+	}
+
+	private static void fail(Throttle throttle, RuntimeException failure) {
+		Throttle.Permit permit = throttle.acquire(QUERY);
+		permit.fail(failure);
+		permit.release();
+	}
+
+	@Test
+	public void backsOffOnServerError() {
+		Throttle throttle = throttle();
+		assertEquals(4, throttle.getLimit());
+		complete(throttle, 503);
+		assertEquals(2, throttle.getLimit());
+	}
+
+	@Test
+	public void backsOffOnThrottling() {
+		Throttle throttle = throttle();
+		complete(throttle, 429);
+		assertEquals(2, throttle.getLimit());
+	}
+
+	@Test
+	public void backsOffOnTimeout() {
+		Throttle throttle = throttle();
+		fail(throttle, new QualityCenterException("Read timed out", new SocketTimeoutException()));
+		assertEquals(2, throttle.getLimit());
+	}
+
+	@Test
+	public void ignoresClientErrors() {
+		Throttle throttle = throttle();
+		complete(throttle, 404);
+		complete(throttle, 401);
+		fail(throttle, new QualityCenterException("Not found", 404));
+		fail(throttle, new IllegalArgumentException("No such entity field"));
+		assertEquals(4, throttle.getLimit());
+	}
+
+	@Test
+	public void backsOffOncePerInterval() throws InterruptedException {
+		Throttle throttle = throttle();
+		complete(throttle, 503);
+		complete(throttle, 503);
+		complete(throttle, 500);
+		assertEquals(2, throttle.getLimit());
+
+		Thread.sleep(150);
+		complete(throttle, 503);
+		assertEquals(1, throttle.getLimit());
+
+		// Never below a single request
+		Thread.sleep(150);
+		complete(throttle, 503);
+		assertEquals(1, throttle.getLimit());
+	}
+
+	@Test
+	public void growsOnlyWhileSaturated() {
+		Throttle throttle = throttle();
+		// Below the limit (fewer samples than needed to judge the latency)
+		for (int i = 0; i < 3; i++) {
+			complete(throttle, 200);
+		}
+		assertEquals(4, throttle.getLimit());
+
+		List<Throttle.Permit> permits = new ArrayList<Throttle.Permit>();
+		for (int i = 0; i < 4; i++) {
+			permits.add(throttle.acquire(QUERY));
+		}
+		assertTrue(throttle.isSaturated());
+		for (int i = 0; i < 4; i++) {
+			// Each time at the limit of 4 (grows by 1/limit)
+			Throttle.Permit permit = permits.remove(0);
+			permit.complete();
+			permit.release();
+			permits.add(throttle.acquire(QUERY));
+		}
+		Throttle.Permit permit = permits.remove(0);
+		permit.complete();
+		permit.release();
+		assertEquals(5, throttle.getLimit());
+
+		for (Throttle.Permit remaining : permits) {
+			remaining.release();
+		}
+		assertFalse(throttle.isSaturated());
+	}
+
+	@Test
+	public void growsUpToMaxConcurrency() {
+		Throttle throttle = throttle();
+		throttle.configure(0, 2);
+		assertEquals(2, throttle.getLimit());
+		Throttle.Permit first = throttle.acquire(QUERY);
+		Throttle.Permit second = throttle.acquire(QUERY);
+		first.complete();
+		first.release();
+		second.complete();
+		second.release();
+		assertEquals(2, throttle.getLimit());
+	}
+
+	@Test
+	public void blocksAtLimit() throws InterruptedException {
+		final Throttle throttle = throttle();
+		List<Throttle.Permit> permits = new ArrayList<Throttle.Permit>();
+		for (int i = 0; i < 4; i++) {
+			permits.add(throttle.acquire(QUERY));
+		}
+
+		final CountDownLatch acquired = new CountDownLatch(1);
+		Thread waiter = new Thread() {
+			@Override
+			public void run() {
+				throttle.acquire(QUERY).release();
+				acquired.countDown();
+			}
+		};
+		waiter.start();
+		assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+
+		permits.get(0).release();
+		assertTrue(acquired.await(5, TimeUnit.SECONDS));
+		for (Throttle.Permit permit : permits) {
+			permit.release();
+		}
+		waiter.join();
+	}
+
+	@Test
+	public void blocksAtRate() {
+		long start = System.nanoTime();
+		Throttle throttle = throttle();
+		throttle.configure(10, 0);
+		// The bucket starts empty, so five requests take half a second
+		for (int i = 0; i < 5; i++) {
+			throttle.acquire(QUERY).release();
+		}
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(450));
+	}
+
+	@Test
+	public void unlimitedRate() {
+		Throttle throttle = throttle();
+		long start = System.nanoTime();
+		for (int i = 0; i < 100; i++) {
+			throttle.acquire(QUERY).release();
+		}
+		assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(450));
+	}
+
+}